@@ -33,7 +33,7 @@ import fr.umlv.smalljs.ast.Expr.VarAssignment;
 import fr.umlv.smalljs.rt.JSObject;
 
 public final class ByteCodeRewriter {
-  static JSObject createFunction(String name, List<String> parameters, Block body, JSObject global) {
+  public static JSObject createFunction(String name, List<String> parameters, Block body, JSObject global) {
     var env = JSObject.newEnv(null);
 
     env.register("this", 0);
@@ -5,11 +5,17 @@ import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
 import fr.umlv.smalljs.ast.Script;
 import fr.umlv.smalljs.astinterp.ASTInterpreter;
 import fr.umlv.smalljs.jvminterp.JVMInterpreter;
+import fr.umlv.smalljs.stackinterp.CompiledScript;
+import fr.umlv.smalljs.stackinterp.ExecutionConfig;
+import fr.umlv.smalljs.stackinterp.ExecutionStats;
 import fr.umlv.smalljs.stackinterp.StackInterpreter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 
 // run with /path/to/jdk-22/bin/java --class-path lib/tatoo-runtime.jar:target/smalljs-1.0.jar fr.umlv.smalljs.main.Main ast samples/hello.js
@@ -17,26 +23,114 @@ public class Main {
   private static BiConsumer<Script, PrintStream> interpreter(String name) {
     return switch (name) {
       case "ast" -> ASTInterpreter::interpret;
-      case "stack" -> StackInterpreter::interpret;
+      case "stack" -> Main::stack;
       case "jvm" -> JVMInterpreter::interpret;
       default -> throw new IllegalArgumentException("unkonwn interpreter " + name);
     };
   }
 
+  // the configuration of the stack interpreter, the execution is profiled if asked on the command line
+  private static final ExecutionConfig STACK_CONFIG =
+      ExecutionConfig.DEFAULT.withProfile(Boolean.getBoolean("fr.umlv.smalljs.profile"));
+
+  // run the stack interpreter, print the profile at the end if the execution is profiled
+  private static void stack(Script script, PrintStream outStream) {
+    var stats = new ExecutionStats();
+    StackInterpreter.interpret(script, outStream, STACK_CONFIG, stats);
+    stats.profile().ifPresent(System.err::print);
+  }
+
+  // run the same compiled script on 1, 2, 4 ... maxThreads threads during a second
+  // and print the number of executions per second,
+  // the functions are not compiled to JVM bytecode because each execution compiles its own functions
+  private static void bench(CompiledScript script, int maxThreads) throws InterruptedException {
+    var outStream = new PrintStream(OutputStream.nullOutputStream());
+    var config = ExecutionConfig.DEFAULT.withTierUpThreshold(0);
+    // warmup
+    var warmupEnd = System.nanoTime() + 1_000_000_000L;
+    while (System.nanoTime() < warmupEnd) {
+      StackInterpreter.interpret(script, outStream, config, new ExecutionStats());
+    }
+    var singleThreadThroughput = 0.0;
+    for (var threadCount = 1; threadCount <= maxThreads; threadCount <<= 1) {
+      var executions = new LongAdder();
+      var end = System.nanoTime() + 1_000_000_000L;
+      var threads = new ArrayList<Thread>();
+      for (var i = 0; i < threadCount; i++) {
+        threads.add(Thread.ofPlatform().start(() -> {
+          while (System.nanoTime() < end) {
+            StackInterpreter.interpret(script, outStream, config, new ExecutionStats());
+            executions.increment();
+          }
+        }));
+      }
+      for (var thread : threads) {
+        thread.join();
+      }
+      var throughput = executions.doubleValue();
+      if (threadCount == 1) {
+        singleThreadThroughput = throughput;
+      }
+      System.out.printf("%d threads: %.0f executions/s, speedup %.2f%n",
+          threadCount, throughput, throughput / singleThreadThroughput);
+    }
+  }
+
   private static void printHelp() {
     System.err.println("""
             Help:
               fr.umlv.smalljs.main.Main interpreter input-file.js
                 available interpreters: "ast", "stack" or "jvm"
+              fr.umlv.smalljs.main.Main compile input-file.js output-file.sjsc
+                compile the script for the "stack" interpreter
+              fr.umlv.smalljs.main.Main stack input-file.sjsc
+                run a compiled script with the "stack" interpreter
+              fr.umlv.smalljs.main.Main histogram snapshot-file.sjsh
+                print the number and the size of the objects by class of a heap snapshot
+                written by the function snapshot(path) of a script run by the "stack" interpreter
+              fr.umlv.smalljs.main.Main bench input-file.js|input-file.sjsc max-threads
+                measure the throughput of the "stack" interpreter running the same
+                compiled script on 1, 2, 4 ... max-threads threads
+            
+            With -Dfr.umlv.smalljs.profile=true, the "stack" interpreter prints a profile at the end.
             """);
     System.exit(1);
   }
 
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length == 3 && args[0].equals("compile")) {
+      var script = createScript(Files.readString(Path.of(args[1])));
+      StackInterpreter.compile(script, Path.of(args[2]));
+      return;
+    }
+    if (args.length == 3 && args[0].equals("bench")) {
+      var path = Path.of(args[1]);
+      var script = path.toString().endsWith(".sjsc") ?
+          StackInterpreter.load(path) :
+          StackInterpreter.compile(createScript(Files.readString(path)));
+      bench(script, Integer.parseInt(args[2]));
+      return;
+    }
+    if (args.length == 2 && args[0].equals("histogram")) {
+      StackInterpreter.printHistogram(Path.of(args[1]), System.out);
+      return;
+    }
     if (args.length != 2) {
       printHelp();
       return;
     }
+    if (args[0].equals("stack") && args[1].endsWith(".sjsc")) {
+      // a compiled script, no parsing and no compilation
+      try {
+        var stats = new ExecutionStats();
+        StackInterpreter.interpret(Path.of(args[1]), System.out, STACK_CONFIG, stats);
+        stats.profile().ifPresent(System.err::print);
+      } catch(RuntimeException e) {
+        e.printStackTrace();
+        printHelp();
+      }
+      return;
+    }
     var interpreter = interpreter(args[0]);
     var text = Files.readString(Path.of(args[1]));
     var script = createScript(text);
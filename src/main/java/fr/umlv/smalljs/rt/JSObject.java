@@ -8,16 +8,18 @@ import java.lang.invoke.MethodType;
 import java.lang.invoke.SwitchPoint;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.UnaryOperator;
 
 public final class JSObject {
   private static final class Layout {
     private final LinkedHashMap<String, Integer> slotMap;
-    private final HashMap<String, Layout> forwardMap = new HashMap<>();
+    // the layouts are shared by all the objects, so by all the threads
+    private final ConcurrentHashMap<String, Layout> forwardMap = new ConcurrentHashMap<>();
 
     private Layout(LinkedHashMap<String, Integer> slotMap) {
       this.slotMap = slotMap;
@@ -43,6 +45,7 @@ public final class JSObject {
   private final String name;
   private Layout layout = ROOT;
   private Object[] array = EMPTY_ARRAY;
+  private UnaryOperator<Object> valueMapper;  // non null for a lazy mirror, maps the values of array
   private final MethodHandle mh;
   private SwitchPoint switchPoint = new SwitchPoint();
   
@@ -120,7 +123,7 @@ public final class JSObject {
     return layout.slot(key);
   }
   public Object fastAccess(int slot) {
-    return array[slot];
+    return value(slot);
   }
 
   public Object invoke(Object receiver, Object... args) {
@@ -146,7 +149,7 @@ public final class JSObject {
     requireNonNull(key);
     var slot = layout.slot(key);
     if (slot != -1) {
-      return array[slot];
+      return value(slot);
     }
     if (proto != null) {
       return proto.lookupOrDefault(key, defaultValue);
@@ -154,9 +157,22 @@ public final class JSObject {
     return defaultValue;
   }
 
+  private Object value(int slot) {
+    var value = array[slot];
+    return valueMapper == null ? value : valueMapper.apply(value);
+  }
+
   public void register(String key, Object value) {
     requireNonNull(key);
     requireNonNull(value);
+    if (valueMapper != null) {  // a lazy mirror becomes a plain object
+      var array = new Object[this.array.length];
+      for (var i = 0; i < array.length; i++) {
+        array[i] = value(i);
+      }
+      this.array = array;
+      valueMapper = null;
+    }
     var slot = layout.slot(key);
     if (slot != -1) {
       array[slot] = value;
@@ -176,15 +192,30 @@ public final class JSObject {
     return array.length;
   }
   
+  public void forEach(BiConsumer<? super String, Object> consumer) {
+    requireNonNull(consumer);
+    layout.slotMap.forEach((key, slot) -> consumer.accept(key, value(slot)));
+  }
+
   public JSObject mirror(UnaryOperator<Object> valueMapper) {
     requireNonNull(valueMapper);
     var mirror = newObject(null);
-    var array = this.array;
     layout.slotMap.forEach((key, slot) -> {
-      mirror.register(key, valueMapper.apply(array[slot]));
+      mirror.register(key, valueMapper.apply(value(slot)));
     });
     return mirror;
   }
+
+  // like mirror() but the values are mapped each time they are read,
+  // the values are shared with this object, so this object should not be modified
+  public JSObject lazyMirror(UnaryOperator<Object> valueMapper) {
+    requireNonNull(valueMapper);
+    var mirror = newObject(null);
+    mirror.layout = layout;
+    mirror.array = (this.valueMapper == null) ? array : mirror(UnaryOperator.identity()).array;
+    mirror.valueMapper = valueMapper;
+    return mirror;
+  }
   
   @Override
   public String toString() {
@@ -212,7 +243,7 @@ public final class JSObject {
     builder.append("{ // ").append(jsObject.name).append('\n');
     jsObject.layout.slotMap.forEach((key, slot) -> {
       builder.append("  ").append(key).append(": ");
-      toString(jsObject.array[slot], builder, seen);
+      toString(jsObject.value(slot), builder, seen);
       builder.append("\n");
     });
     builder.append("  proto: ");
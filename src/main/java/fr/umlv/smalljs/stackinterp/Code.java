@@ -2,11 +2,174 @@ package fr.umlv.smalljs.stackinterp;
 
 import static java.util.Objects.requireNonNull;
 
-record Code(int[] instrs, int parameterCount, int slotCount) {
-	Code {
+import java.nio.IntBuffer;
+
+import fr.umlv.smalljs.ast.Expr.Fun;
+import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
+
+// the code of a function, a code is immutable once created so it can be shared by several executions,
+// the state of a code that changes during an execution is stored in a CodeState
+//
+// the code is verified the first time it's executed (see Verifier), the verifier computes
+// the maximum height of the operand stack
+//
+// the instructions of a code read from a file (see CodeFile) are loaded the first time they are used
+//
+// the line table maps the index of an instruction to its line in the source (see LineTable),
+// it's only used to report a failure or print a profile
+//
+// a code compiled from a function keeps the function, so it can be compiled to JVM bytecode once it's hot (see TierUp)
+//
+// a code where the calls to the operators on constants are folded (see InstrRewriter) is only valid
+// if the operators of the global environment are the builtin ones, otherwise the interpreter executes
+// the code of the same function compiled without folding (see unfolded())
+final class Code {
+	// the code is the first attribute registered on a function, so all the functions
+	// with no other attribute share the same layout and the code is at a known slot
+	private static final String CODE_KEY = "__code__";
+	private static final int CODE_SLOT = 0;
+	private static final Object CODE_LAYOUT;
+	private static final Object EMPTY_LAYOUT;
+	static {
+		var function = JSObject.newFunction("layout", JSObject.NO_INVOKER_MH);
+		EMPTY_LAYOUT = function.layout();
+		function.register(CODE_KEY, new Code(new int[0], 1, 1));
+		CODE_LAYOUT = function.layout();
+	}
+
+	private final int parameterCount;
+	private final int slotCount;
+	private final byte[] lineTable;
+	private final Fun fun;      // the function or null
+	private final boolean foldsOperators;
+	private volatile Code unfolded;  // the code compiled without folding or null, lazily computed
+	private IntBuffer source;   // the instructions not yet loaded or null, guarded by this
+	private volatile int[] instrs;
+	// -1 if the code is not yet verified, the verification can be done by several threads
+	// at the same time, all of them compute the same value
+	private int maxStack = -1;
+
+	private Code(int parameterCount, int slotCount, byte[] lineTable, Fun fun, boolean foldsOperators) {
 		if (parameterCount < 1 || slotCount < 1 || parameterCount > slotCount) {
 			throw new IllegalArgumentException("invalid parameter or slot count");
 		}
-		requireNonNull(instrs);
+		this.parameterCount = parameterCount;
+		this.slotCount = slotCount;
+		this.lineTable = requireNonNull(lineTable);
+		this.fun = fun;
+		this.foldsOperators = foldsOperators;
+	}
+
+	Code(int[] instrs, int parameterCount, int slotCount) {
+		this(instrs, parameterCount, slotCount, LineTable.EMPTY, null, false);
+	}
+
+	Code(int[] instrs, int parameterCount, int slotCount, byte[] lineTable, Fun fun, boolean foldsOperators) {
+		this(parameterCount, slotCount, lineTable, fun, foldsOperators);
+		this.instrs = requireNonNull(instrs);
+	}
+
+	// the instructions are loaded from the source the first time they are used
+	Code(IntBuffer source, int parameterCount, int slotCount, byte[] lineTable, boolean foldsOperators) {
+		this(parameterCount, slotCount, lineTable, null, foldsOperators);
+		this.source = requireNonNull(source);
+	}
+
+	private synchronized int[] load() {
+		var instrs = this.instrs;
+		if (instrs == null) {
+			instrs = new int[source.remaining()];
+			source.get(source.position(), instrs);
+			source = null;
+			this.instrs = instrs;
+		}
+		return instrs;
+	}
+
+	// the instructions, must not be modified
+	int[] instrs() {
+		var instrs = this.instrs;
+		return instrs != null ? instrs : load();
+	}
+
+	int parameterCount() {
+		return parameterCount;
+	}
+
+	int slotCount() {
+		return slotCount;
+	}
+
+	// the maximum height of the operand stack, the code is verified the first time
+	int maxStack(Dictionary dict) {
+		var maxStack = this.maxStack;
+		if (maxStack == -1) {
+			maxStack = Verifier.verify(this, dict);
+			this.maxStack = maxStack;
+		}
+		return maxStack;
+	}
+
+	// the line table, must not be modified
+	byte[] lineTable() {
+		return lineTable;
+	}
+
+	// the line of the instruction at pc (or of one of its operands) or -1 if unknown
+	int lineNumber(int pc) {
+		return LineTable.lineNumber(lineTable, pc);
+	}
+
+	Fun fun() {
+		return fun;
+	}
+
+	// true if some calls to the operators are folded
+	boolean foldsOperators() {
+		return foldsOperators;
+	}
+
+	// the code of the same function compiled without folding the calls to the operators,
+	// it can be compiled by several threads at the same time, only one code is kept
+	Code unfolded(Dictionary dict) {
+		if (!foldsOperators) {
+			return this;
+		}
+		var unfolded = this.unfolded;
+		if (unfolded == null) {
+			if (fun == null) {
+				throw new Failure("the code folds the operators and can not be compiled again without the function");
+			}
+			unfolded = InstrRewriter.createUnfoldedCode(fun, dict);
+			synchronized (this) {
+				if (this.unfolded == null) {
+					this.unfolded = unfolded;
+				}
+				unfolded = this.unfolded;
+			}
+		}
+		return unfolded;
+	}
+
+	// attach the code to a function with no attribute
+	void attachTo(JSObject function) {
+		if (function.layout() != EMPTY_LAYOUT) {
+			throw new IllegalArgumentException("the function " + function.name() + " already has attributes");
+		}
+		function.register(CODE_KEY, this);
+	}
+
+	// the code of a function or null if the function is a native function,
+	// there is no lookup unless attributes were added to the function
+	static Code of(JSObject function) {
+		var layout = function.layout();
+		if (layout == CODE_LAYOUT) {
+			return (Code) function.fastAccess(CODE_SLOT);
+		}
+		if (layout == EMPTY_LAYOUT || NativeFunction.isNative(function)) {
+			return null;
+		}
+		return (Code) function.lookupOrDefault(CODE_KEY, null);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,207 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// Binary format (.sjsc) of a compiled script, the code of the functions and the dictionary.
+//
+// All the values are big endian ints, a string is its length followed by its bytes in UTF-8.
+//   magic version
+//   cell_count cell_name*
+//   constant_count constant*
+//   function  (the main function)
+//
+// A constant starts with its kind
+//   UNDEFINED
+//   STRING string
+//   INTEGER value
+//   CLASS field_count field_name*  (in slot order)
+//   FUNCTION name parameter_count slot_count flags instr_count instr* line_table_size line_table_byte*
+//
+// The constants are stored in the order of their index in the dictionary so the instructions
+// that reference them by index (see TagValues.encodeDictObject) can be stored as is.
+// The line table of a function is stored as is (see LineTable).
+// The flags of a function are FOLDS_OPERATORS if the code folds calls to the operators (see Code.foldsOperators()),
+// such a code can not be executed with other operators because the function is not stored.
+// The reader maps the file in memory and the instructions of a function are only
+// decoded the first time the function is called.
+final class CodeFile {
+	private CodeFile() {
+		throw new AssertionError();
+	}
+
+	private static final int MAGIC = 0x534A5343;  // SJSC
+	private static final int VERSION = 4;
+
+	private static final int UNDEFINED_KIND = 0;
+	private static final int STRING_KIND = 1;
+	private static final int INTEGER_KIND = 2;
+	private static final int CLASS_KIND = 3;
+	private static final int FUNCTION_KIND = 4;
+
+	private static final int FOLDS_OPERATORS = 1;
+
+	private static final String FUNCTION_PREFIX = "function ";
+
+	static void write(Path path, JSObject function, Dictionary dict) throws IOException {
+		try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(dict.cellCount());
+			for (var i = 0; i < dict.cellCount(); i++) {
+				writeString(output, dict.cellName(i));
+			}
+			output.writeInt(dict.constantCount());
+			for (var i = 0; i < dict.constantCount(); i++) {
+				writeConstant(output, dict.getConst(i));
+			}
+			writeFunction(output, function);
+		}
+	}
+
+	static void writeString(DataOutputStream output, String s) throws IOException {
+		var bytes = s.getBytes(UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	static void writeConstant(DataOutputStream output, Object constant) throws IOException {
+		if (constant == UNDEFINED) {
+			output.writeInt(UNDEFINED_KIND);
+			return;
+		}
+		switch (constant) {
+			case String s -> {
+				output.writeInt(STRING_KIND);
+				writeString(output, s);
+			}
+			case Integer value -> {
+				output.writeInt(INTEGER_KIND);
+				output.writeInt(value);
+			}
+			case JSObject object when Code.of(object) != null -> {
+				output.writeInt(FUNCTION_KIND);
+				writeFunction(output, object);
+			}
+			case JSObject clazz -> {
+				output.writeInt(CLASS_KIND);
+				// the field names in slot order
+				var fieldNames = new String[clazz.length()];
+				clazz.forEach((fieldName, slot) -> fieldNames[(int) slot] = fieldName);
+				output.writeInt(fieldNames.length);
+				for (var fieldName : fieldNames) {
+					writeString(output, fieldName);
+				}
+			}
+			default -> throw new IllegalArgumentException("unknown constant " + constant);
+		}
+	}
+
+	private static void writeFunction(DataOutputStream output, JSObject function) throws IOException {
+		var code = Code.of(function);
+		writeString(output, function.name().substring(FUNCTION_PREFIX.length()));
+		output.writeInt(code.parameterCount());
+		output.writeInt(code.slotCount());
+		output.writeInt(code.foldsOperators() ? FOLDS_OPERATORS : 0);
+		var instrs = code.instrs();
+		output.writeInt(instrs.length);
+		for (var instr : instrs) {
+			output.writeInt(instr);
+		}
+		var lineTable = code.lineTable();
+		output.writeInt(lineTable.length);
+		output.write(lineTable);
+	}
+
+	// read the file, fill the empty dictionary and return the main function
+	static JSObject read(Path path, Dictionary dict) throws IOException {
+		ByteBuffer buffer;
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("not a compiled script " + path);
+			}
+			var version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported version " + version + " " + path);
+			}
+			var cellCount = buffer.getInt();
+			for (var i = 0; i < cellCount; i++) {
+				dict.cellIndex(readString(buffer));
+			}
+			var constantCount = buffer.getInt();
+			for (var i = 0; i < constantCount; i++) {
+				var constant = readConstant(buffer, dict);
+				// undefined is already in the dictionary at index 0
+				if (dict.index(constant) != i) {
+					throw new IOException("duplicate constant " + constant + " " + path);
+				}
+			}
+			var function = readFunction(buffer);
+			if (buffer.hasRemaining()) {
+				throw new IOException("trailing bytes " + path);
+			}
+			return function;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException
+				 | ArithmeticException | IllegalArgumentException e) {
+			throw new IOException("corrupted compiled script " + path, e);
+		}
+	}
+
+	static String readString(ByteBuffer buffer) {
+		var bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	static Object readConstant(ByteBuffer buffer, Dictionary dict) throws IOException {
+		var kind = buffer.getInt();
+		return switch (kind) {
+			case UNDEFINED_KIND -> UNDEFINED;
+			case STRING_KIND -> readString(buffer);
+			case INTEGER_KIND -> buffer.getInt();
+			case CLASS_KIND -> {
+				// the classes are shared with the classes created during the execution (see Dictionary.transition())
+				var fieldNames = new String[buffer.getInt()];
+				for (var i = 0; i < fieldNames.length; i++) {
+					fieldNames[i] = readString(buffer);
+				}
+				yield dict.classOf(List.of(fieldNames));
+			}
+			case FUNCTION_KIND -> readFunction(buffer);
+			default -> throw new IOException("unknown constant kind " + kind);
+		};
+	}
+
+	private static JSObject readFunction(ByteBuffer buffer) {
+		var name = readString(buffer);
+		var parameterCount = buffer.getInt();
+		var slotCount = buffer.getInt();
+		var flags = buffer.getInt();
+		var instrCount = buffer.getInt();
+		// the instructions are not decoded now, only a view on the mapped file is kept
+		var instrs = buffer.slice(buffer.position(), Math.multiplyExact(instrCount, Integer.BYTES)).asIntBuffer();
+		buffer.position(buffer.position() + instrCount * Integer.BYTES);
+		var lineTable = new byte[buffer.getInt()];
+		buffer.get(lineTable);
+		var code = new Code(instrs, parameterCount, slotCount, lineTable, (flags & FOLDS_OPERATORS) != 0);
+		var function = JSObject.newFunction(name, JSObject.NO_INVOKER_MH);
+		code.attachTo(function);
+		return function;
+	}
+}
@@ -0,0 +1,40 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.Arrays;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// the state of a Code during an execution, a Code is immutable and can be shared
+// by several executions running concurrently, all the states that change during an execution
+// are stored here, one CodeState per Code per execution
+//
+// the instructions are a copy of the instructions of the code, because GET/PUT are quickened in place
+//
+// the inline caches are indexed by the pc of the operand of a GET_CACHED/PUT_CACHED,
+// each one stores the expected class (tag value) in the high 32 bits and the field slot
+// in the low 32 bits (or for a PUT that adds a field, the new class as a negative value ~vNewClass),
+// an empty cache is EMPTY_CACHE, -1 is never the header of an object and a sign extended int
+// is never EMPTY_CACHE, so an empty cache never matches
+//
+// the call caches are indexed by the pc of the operand of a FUNCALL, the inline cache
+// at the same index stores the tag value of the function and callTargets the state of its code
+// (a native function is never cached)
+final class CodeState {
+	static final long EMPTY_CACHE = 0xFFFF_FFFF_0000_0000L;
+
+	final Code code;
+	final int[] instrs;
+	final long[] inlineCaches;
+	final CodeState[] callTargets;
+	int invocationCount;
+	JSObject compiledFunction;  // the function compiled to JVM bytecode or null (see TierUp)
+	ExecutionProfile.CodeProfile profile;  // the counters if the execution is profiled or null
+
+	CodeState(Code code) {
+		this.code = code;
+		this.instrs = code.instrs().clone();
+		this.inlineCaches = new long[instrs.length];
+		Arrays.fill(inlineCaches, EMPTY_CACHE);
+		this.callTargets = new CodeState[instrs.length];
+	}
+}
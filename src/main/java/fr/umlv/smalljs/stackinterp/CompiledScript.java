@@ -0,0 +1,23 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+/**
+ * A script compiled by the stack interpreter, the code of its functions and its dictionary.
+ *
+ * A compiled script is never modified by an execution, so it can be executed several times,
+ * by several threads at the same time (see {@link StackInterpreter#interpret(CompiledScript, java.io.PrintStream, ExecutionConfig, ExecutionStats)}),
+ * each execution has its own heap, global environment and state of the code (inline caches,
+ * invocation counters, compiled functions).
+ */
+public final class CompiledScript {
+	final JSObject function;  // the main function
+	final Dictionary dict;
+
+	CompiledScript(JSObject function, Dictionary dict) {
+		this.function = requireNonNull(function);
+		this.dict = requireNonNull(dict);
+	}
+}
@@ -1,21 +1,103 @@
 package fr.umlv.smalljs.stackinterp;
 
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+
+import fr.umlv.smalljs.rt.JSObject;
 
+// the constants and the global names of a script, the dictionary is filled when the script
+// is compiled, during an execution only the classes of the objects are added (see transition()),
+// so it can be shared by several executions running concurrently
+//
+// the constants can be read without a lock, the array of the constants is only replaced
+// when it grows, and a thread only reads the index of a constant that it has seen being added
 final class Dictionary {
 	private final HashMap<Object, Integer> indexMap = new HashMap<>();
-	private final ArrayList<Object> constants = new ArrayList<>();
+	private volatile Object[] constants = new Object[16];
+	private int constantCount;
+	// the classes of the objects indexed by their field names (in slot order), so all the objects
+	// with the same fields have the same class (a hidden class), created by an object literal or
+	// by adding the fields one by one
+	private final HashMap<List<String>, JSObject> classMap = new HashMap<>();
+	// the transition tree, the class with one more field of a class
+	private record Transition(JSObject clazz, String fieldName) {}
+	private final HashMap<Transition, JSObject> transitions = new HashMap<>();
+	// global names resolved at compile time to the index of a cell
+	private final HashMap<String, Integer> cellMap = new HashMap<>();
+	private final ArrayList<String> cellNames = new ArrayList<>();
+
+	public Dictionary() {
+		// undefined is used by all the executions
+		index(UNDEFINED);
+	}
 
-	public int index(Object constant) {
+	public synchronized int index(Object constant) {
 		return indexMap.computeIfAbsent(constant, key -> {
-			var index = constants.size();
-			constants.add(key);
+			var index = constantCount;
+			if (index == constants.length) {
+				constants = Arrays.copyOf(constants, index << 1);
+			}
+			constants[index] = key;
+			constantCount = index + 1;
 			return index;
 		});
 	}
 
 	public Object getConst(int index) {
-		return constants.get(index);
+		return constants[index];
+	}
+
+	public synchronized int constantCount() {
+		return constantCount;
+	}
+
+	// the class of the objects with these fields (in slot order)
+	public synchronized JSObject classOf(List<String> fieldNames) {
+		var clazz = classMap.get(fieldNames);
+		if (clazz == null) {
+			clazz = JSObject.newObject(null);
+			for (var fieldName : fieldNames) {
+				clazz.register(fieldName, clazz.length());
+			}
+			classMap.put(List.copyOf(fieldNames), clazz);
+			index(clazz);
+		}
+		return clazz;
+	}
+
+	// the class with the fields of the class plus a new field (in the last slot),
+	// called during an execution when a field is added to an object
+	public synchronized JSObject transition(JSObject clazz, String fieldName) {
+		return transitions.computeIfAbsent(new Transition(clazz, fieldName), _ -> {
+			var fieldNames = new String[clazz.length() + 1];
+			clazz.forEach((name, slot) -> fieldNames[(int) slot] = name);
+			fieldNames[clazz.length()] = fieldName;
+			return classOf(List.of(fieldNames));
+		});
+	}
+
+	public int cellIndex(String name) {
+		return cellMap.computeIfAbsent(name, key -> {
+			var index = cellNames.size();
+			cellNames.add(key);
+			return index;
+		});
+	}
+
+	// index of the cell of a global name or -1
+	public int findCell(String name) {
+		return cellMap.getOrDefault(name, -1);
+	}
+
+	public String cellName(int index) {
+		return cellNames.get(index);
+	}
+
+	public int cellCount() {
+		return cellNames.size();
 	}
 }
@@ -0,0 +1,95 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Configuration of an execution of the stack interpreter.
+ *
+ * @param nurserySize size (in ints) of the young generation, where the objects are allocated,
+ *                    only used by the generational collector.
+ * @param heapSize size (in ints) of the old generation, where the objects surviving
+ *                 a minor collection are promoted, or size of the whole heap for
+ *                 the incremental collector.
+ * @param collector the garbage collector.
+ * @param stackSize initial size (in ints) of the stack, the stack grows on demand.
+ * @param maxStackSize maximum size (in ints) of the stack, a call that needs more
+ *                     fails with a stack overflow.
+ * @param tierUpThreshold number of calls after which a function is compiled to JVM bytecode
+ *                        if it can be compiled, 0 to never compile.
+ * @param storage where the memory of the heap is allocated.
+ * @param profile true if the execution is profiled, the instructions executed are counted.
+ */
+public record ExecutionConfig(int nurserySize, int heapSize, Collector collector, int stackSize, int maxStackSize,
+                              int tierUpThreshold, Storage storage, boolean profile) {
+	/**
+	 * The garbage collectors.
+	 */
+	public enum Collector {
+		/**
+		 * A stop the world generational copying collector.
+		 */
+		GENERATIONAL,
+		/**
+		 * An incremental mark and sweep collector, the work is done during the allocations
+		 * to bound the pause times.
+		 */
+		INCREMENTAL
+	}
+
+	/**
+	 * Where the memory of the heap is allocated.
+	 */
+	public enum Storage {
+		/**
+		 * In an array of the Java heap.
+		 */
+		JAVA_HEAP,
+		/**
+		 * In native memory outside of the Java heap, the memory is not scanned by the JVM garbage collector
+		 * and is freed at the end of the execution, so the heap can be bigger than the Java heap.
+		 */
+		OFF_HEAP
+	}
+
+	public static final ExecutionConfig DEFAULT =
+			new ExecutionConfig(1_024, 4_096, Collector.GENERATIONAL, 1_024, 1 << 20, 1_000, Storage.JAVA_HEAP, false);
+
+	public ExecutionConfig {
+		// the sizes are stored in the heap or on the stack as small ints
+		if (nurserySize < TagValues.OBJECT_HEADER_SIZE || heapSize < nurserySize || heapSize > TagValues.MAX_SMALL_INT) {
+			throw new IllegalArgumentException("invalid nursery size or heap size");
+		}
+		requireNonNull(collector);
+		requireNonNull(storage);
+		if (stackSize < 0 || maxStackSize < stackSize || maxStackSize > TagValues.MAX_SMALL_INT) {
+			throw new IllegalArgumentException("invalid stack size or max stack size");
+		}
+		if (tierUpThreshold < 0) {
+			throw new IllegalArgumentException("invalid tier up threshold");
+		}
+	}
+
+	public ExecutionConfig withHeapSizes(int nurserySize, int heapSize) {
+		return new ExecutionConfig(nurserySize, heapSize, collector, stackSize, maxStackSize, tierUpThreshold, storage, profile);
+	}
+
+	public ExecutionConfig withCollector(Collector collector) {
+		return new ExecutionConfig(nurserySize, heapSize, collector, stackSize, maxStackSize, tierUpThreshold, storage, profile);
+	}
+
+	public ExecutionConfig withStackSizes(int stackSize, int maxStackSize) {
+		return new ExecutionConfig(nurserySize, heapSize, collector, stackSize, maxStackSize, tierUpThreshold, storage, profile);
+	}
+
+	public ExecutionConfig withTierUpThreshold(int tierUpThreshold) {
+		return new ExecutionConfig(nurserySize, heapSize, collector, stackSize, maxStackSize, tierUpThreshold, storage, profile);
+	}
+
+	public ExecutionConfig withStorage(Storage storage) {
+		return new ExecutionConfig(nurserySize, heapSize, collector, stackSize, maxStackSize, tierUpThreshold, storage, profile);
+	}
+
+	public ExecutionConfig withProfile(boolean profile) {
+		return new ExecutionConfig(nurserySize, heapSize, collector, stackSize, maxStackSize, tierUpThreshold, storage, profile);
+	}
+}
@@ -0,0 +1,161 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+/**
+ * Profile of an execution of the stack interpreter, the number of times each instruction
+ * is executed, each function is called and each call site calls a native function
+ * (or a function compiled to JVM bytecode) or an interpreted function.
+ *
+ * An execution is profiled if its configuration asks for it, see {@link ExecutionConfig#withProfile(boolean)},
+ * the profile is then available with {@link ExecutionStats#profile()}.
+ */
+public final class ExecutionProfile {
+	/**
+	 * Profile of a call site.
+	 *
+	 * @param pc index of the operand of the FUNCALL/TAILCALL in the instructions of the function.
+	 * @param line line of the call in the source or -1 if unknown.
+	 * @param nativeCalls number of calls to a native or compiled function.
+	 * @param interpretedCalls number of calls to an interpreted function.
+	 */
+	public record CallSiteProfile(int pc, int line, long nativeCalls, long interpretedCalls) {}
+
+	/**
+	 * Profile of a function.
+	 *
+	 * @param name name of the function.
+	 * @param invocations number of times the function is called by the interpreter.
+	 * @param callSites profile of the call sites that were executed.
+	 */
+	public record FunctionProfile(String name, long invocations, List<CallSiteProfile> callSites) {
+		public FunctionProfile {
+			callSites = List.copyOf(callSites);
+		}
+	}
+
+	// the counters of a code, stored in the state of the code of the execution
+	static final class CodeProfile {
+		private final Code code;
+		private final String name;
+		private long invocations;
+		private final long[] nativeCalls;       // indexed by the pc of the operand of a call
+		private final long[] interpretedCalls;  // indexed by the pc of the operand of a call
+
+		private CodeProfile(Code code, String name, int instrCount) {
+			this.code = code;
+			this.name = name;
+			this.nativeCalls = new long[instrCount];
+			this.interpretedCalls = new long[instrCount];
+		}
+	}
+
+	private final long[] opcodeCounts = new long[Instructions.NAMES.size()];
+	private final ArrayList<CodeProfile> codeProfiles = new ArrayList<>();  // in order of first call
+
+	ExecutionProfile() {}
+
+	void recordOpcode(int opcode) {
+		opcodeCounts[opcode]++;
+	}
+
+	// record a call of the code, the tag value of the function is only decoded the first time
+	void recordInvocation(CodeState state, int functionTag, Dictionary dict, Heap heap) {
+		var codeProfile = state.profile;
+		if (codeProfile == null) {
+			var function = (JSObject) decodeAnyValue(functionTag, dict, heap);
+			codeProfile = new CodeProfile(state.code, function.name(), state.instrs.length);
+			state.profile = codeProfile;
+			codeProfiles.add(codeProfile);
+		}
+		codeProfile.invocations++;
+	}
+
+	// record a call at the call site pc of the code, the code was already called
+	void recordCall(CodeState state, int pc, boolean nativeCall) {
+		var codeProfile = state.profile;
+		if (nativeCall) {
+			codeProfile.nativeCalls[pc]++;
+		} else {
+			codeProfile.interpretedCalls[pc]++;
+		}
+	}
+
+	// the number of instructions executed, the sum of the opcode histogram
+	long dispatches() {
+		var dispatches = 0L;
+		for (var count : opcodeCounts) {
+			dispatches += count;
+		}
+		return dispatches;
+	}
+
+	/**
+	 * Returns the number of times each instruction was executed, by instruction name.
+	 * @return the number of times each instruction was executed, by instruction name.
+	 */
+	public Map<String, Long> opcodeHistogram() {
+		var histogram = new LinkedHashMap<String, Long>();
+		for (var opcode = 0; opcode < opcodeCounts.length; opcode++) {
+			var name = Instructions.NAMES.get(opcode);
+			if (name != null) {
+				histogram.put(name, opcodeCounts[opcode]);
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the profile of the functions called, in the order of their first call.
+	 * @return the profile of the functions called, in the order of their first call.
+	 */
+	public List<FunctionProfile> functions() {
+		var functions = new ArrayList<FunctionProfile>();
+		for (var codeProfile : codeProfiles) {
+			var callSites = new ArrayList<CallSiteProfile>();
+			for (var pc = 0; pc < codeProfile.nativeCalls.length; pc++) {
+				var nativeCalls = codeProfile.nativeCalls[pc];
+				var interpretedCalls = codeProfile.interpretedCalls[pc];
+				if (nativeCalls != 0 || interpretedCalls != 0) {
+					callSites.add(new CallSiteProfile(pc, codeProfile.code.lineNumber(pc), nativeCalls, interpretedCalls));
+				}
+			}
+			functions.add(new FunctionProfile(codeProfile.name, codeProfile.invocations, callSites));
+		}
+		return functions;
+	}
+
+	@Override
+	public String toString() {
+		var builder = new StringBuilder();
+		builder.append("instructions:\n");
+		opcodeHistogram().entrySet().stream()
+				.filter(entry -> entry.getValue() != 0)
+				.sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+				.forEach(entry -> builder.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n'));
+		builder.append("functions:\n");
+		functions().stream()
+				.sorted(Comparator.comparingLong(FunctionProfile::invocations).reversed())
+				.forEach(function -> {
+					builder.append("  ").append(function.name()).append(": ").append(function.invocations()).append(" calls\n");
+					for (var callSite : function.callSites()) {
+						builder.append("    call at ").append(callSite.pc());
+						if (callSite.line() != -1) {
+							builder.append(" (line ").append(callSite.line()).append(')');
+						}
+						builder.append(": ")
+								.append(callSite.nativeCalls()).append(" native, ")
+								.append(callSite.interpretedCalls()).append(" interpreted\n");
+					}
+				});
+		return builder.toString();
+	}
+}
@@ -0,0 +1,118 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.Optional;
+
+/**
+ * Statistics collected during an execution of the stack interpreter.
+ * All the times are in nanoseconds.
+ */
+public final class ExecutionStats {
+	private long minorCollections;
+	private long majorCollections;
+	private long minorPauseTime;
+	private long majorPauseTime;
+	private long incrementalCycles;
+	private long incrementalPauseTime;
+	private long maxPauseTime;
+	private int handleTableSize;
+	private int compiledFunctions;
+	private ExecutionProfile profile;  // created by the first execution that is profiled
+
+	void recordMinorCollection(long pauseTime) {
+		minorCollections++;
+		minorPauseTime += pauseTime;
+		maxPauseTime = Math.max(maxPauseTime, pauseTime);
+	}
+
+	void recordMajorCollection(long pauseTime) {
+		majorCollections++;
+		majorPauseTime += pauseTime;
+		maxPauseTime = Math.max(maxPauseTime, pauseTime);
+	}
+
+	void recordIncrementalPause(long pauseTime) {
+		incrementalPauseTime += pauseTime;
+		maxPauseTime = Math.max(maxPauseTime, pauseTime);
+	}
+
+	void recordIncrementalCycle() {
+		incrementalCycles++;
+	}
+
+	void recordHandleTableSize(int capacity) {
+		handleTableSize = Math.max(handleTableSize, capacity);
+	}
+
+	void recordCompiledFunction() {
+		compiledFunctions++;
+	}
+
+	public long minorCollections() {
+		return minorCollections;
+	}
+
+	public long majorCollections() {
+		return majorCollections;
+	}
+
+	public long minorPauseTime() {
+		return minorPauseTime;
+	}
+
+	public long majorPauseTime() {
+		return majorPauseTime;
+	}
+
+	public long incrementalCycles() {
+		return incrementalCycles;
+	}
+
+	public long incrementalPauseTime() {
+		return incrementalPauseTime;
+	}
+
+	public long maxPauseTime() {
+		return maxPauseTime;
+	}
+
+	// the number of instructions executed, 0 if the execution is not profiled (see ExecutionConfig.profile())
+	public long dispatches() {
+		return profile == null ? 0 : profile.dispatches();
+	}
+
+	public int handleTableSize() {
+		return handleTableSize;
+	}
+
+	public int compiledFunctions() {
+		return compiledFunctions;
+	}
+
+	// the profile where a profiled execution records its counters
+	ExecutionProfile profileForRecording() {
+		if (profile == null) {
+			profile = new ExecutionProfile();
+		}
+		return profile;
+	}
+
+	/**
+	 * Returns the profile of the execution if the execution is profiled.
+	 * @return the profile of the execution if the execution is profiled.
+	 * @see ExecutionConfig#withProfile(boolean)
+	 */
+	public Optional<ExecutionProfile> profile() {
+		return Optional.ofNullable(profile);
+	}
+
+	@Override
+	public String toString() {
+		return "dispatches: " + dispatches() + ", "
+				+ "minor GC: " + minorCollections + " (" + minorPauseTime / 1_000 + " us), "
+				+ "major GC: " + majorCollections + " (" + majorPauseTime / 1_000 + " us), "
+				+ "incremental GC: " + incrementalCycles + " (" + incrementalPauseTime / 1_000 + " us), "
+				+ "max pause: " + maxPauseTime / 1_000 + " us, "
+				+ "handle table size: " + handleTableSize + ", "
+				+ "compiled functions: " + compiledFunctions;
+	}
+}
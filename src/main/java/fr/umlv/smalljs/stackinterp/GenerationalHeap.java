@@ -0,0 +1,295 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import fr.umlv.smalljs.rt.Failure;
+
+// A generational heap, all the addresses are in the same memory
+//   [ nursery | old space | old reserve ]
+//
+// Objects are allocated by bumping a pointer in the nursery.
+// A minor collection promotes the live objects of the nursery into the old space
+// (a Cheney copying collection with the nursery as from-space), the roots are the stack
+// and the remembered set, the old objects that may reference a young object.
+// The remembered set is maintained by a write barrier on each field store (see putField()).
+// The references of the object views (see Heap.view()) are roots like the stack.
+// A major collection evacuates all the live objects (nursery and old space)
+// into the old reserve (again a Cheney copying collection) and swaps the old space and the reserve.
+// Only a major collection reclaims the handles, it marks the handles of the roots
+// and of the evacuated objects.
+// A relocated object (see Heap.relocate()) is never copied, the references to it
+// are replaced by the references to the object it forwards to.
+final class GenerationalHeap extends Heap {
+	static final int GC_REMEMBERED = -3;
+
+	private final int nurserySize;
+	private final int oldSize;
+
+	private int nurseryTop;  // allocation pointer in the nursery
+	private int oldBase;     // start of the old space
+	private int oldTop;      // allocation pointer in the old space
+
+	private int[] remembered = new int[16];
+	private int rememberedCount;
+
+	GenerationalHeap(ExecutionConfig config, Dictionary dict, ExecutionStats stats) {
+		super(Memory.create(config.storage(), config.nurserySize() + 2L * config.heapSize()), dict, stats);
+		this.nurserySize = config.nurserySize();
+		this.oldSize = config.heapSize();
+		this.oldBase = nurserySize;
+		this.oldTop = oldBase;
+	}
+
+	boolean isYoung(int address) {
+		return address < nurserySize;
+	}
+
+	@Override
+	void forEachObject(IntConsumer consumer) {
+		for (var address = 0; address < nurseryTop; address += sizeAt(address)) {
+			if (!isReference(memory.get(address))) {  // not a forwarder
+				consumer.accept(address);
+			}
+		}
+		for (var address = oldBase; address < oldTop; address += sizeAt(address)) {
+			if (!isReference(memory.get(address))) {
+				consumer.accept(address);
+			}
+		}
+	}
+
+	// objects bigger than the nursery are directly allocated in the old space
+	@Override
+	int allocate(int vClass, int size) {
+		int ref;
+		if (nurseryTop + size <= nurserySize) {
+			ref = nurseryTop;
+			nurseryTop += size;
+		} else if (size > nurserySize && oldTop + size <= oldBase + oldSize) {
+			ref = oldTop;
+			oldTop += size;
+			// the fields are initialized without a write barrier, so remember the object
+			memory.set(ref, vClass);
+			remember(ref);
+			return ref;
+		} else {
+			return -1;
+		}
+		memory.set(ref, vClass);
+		memory.set(ref + GC_OFFSET, GC_EMPTY);
+		return ref;
+	}
+
+	private void remember(int ref) {
+		memory.set(ref + GC_OFFSET, GC_REMEMBERED);
+		if (rememberedCount == remembered.length) {
+			remembered = Arrays.copyOf(remembered, rememberedCount << 1);
+		}
+		remembered[rememberedCount++] = ref;
+	}
+
+	// if an old object now references a young object,
+	// the old object is added to the remembered set (write barrier)
+	@Override
+	void putField(int ref, int fieldIndex, int value) {
+		memory.set(ref + OBJECT_HEADER_SIZE + fieldIndex, value);
+		if (!isYoung(ref) && isReference(value) && isYoung(decodeReference(value))
+				&& memory.get(ref + GC_OFFSET) == GC_EMPTY) {
+			remember(ref);
+		}
+	}
+
+	// only the last object of the nursery can grow
+	@Override
+	boolean extend(int ref, int size, int newSize) {
+		if (ref + size != nurseryTop || ref + newSize > nurserySize) {
+			return false;
+		}
+		nurseryTop = ref + newSize;
+		return true;
+	}
+
+	// an old forwarder to a young object is remembered, the forwarding address is updated
+	// by the minor collections like a field
+	@Override
+	void relocateBarrier(int ref, int newRef, int size) {
+		if (!isYoung(ref) && isYoung(newRef) && memory.get(ref + GC_OFFSET) == GC_EMPTY) {
+			remember(ref);
+		}
+	}
+
+	// a minor collection or a major collection if the old space is too full
+	@Override
+	void collect(int[] stack, int sp, int[] cells, int size) {
+		var start = System.nanoTime();
+		views.expunge();
+		if (oldBase + oldSize - oldTop >= nurseryTop) {
+			minorCollection(stack, sp);
+			stats.recordMinorCollection(System.nanoTime() - start);
+			if (oldBase + oldSize - oldTop >= Math.max(nurserySize, size)) {
+				return;
+			}
+			// not enough room in the old space for the next promotion
+			start = System.nanoTime();
+		}
+		majorCollection(stack, sp, cells);
+		stats.recordMajorCollection(System.nanoTime() - start);
+	}
+
+	@Override
+	void collectAll(int[] stack, int sp, int[] cells) {
+		var start = System.nanoTime();
+		views.expunge();
+		majorCollection(stack, sp, cells);
+		stats.recordMajorCollection(System.nanoTime() - start);
+	}
+
+	private void minorCollection(int[] stack, int sp) {
+		var free = oldTop;
+
+		// 1. promote the young objects referenced from the stack and the views
+		free = promoteRoots(stack, sp, free);
+		var refs = views.refs();
+		free = promoteRoots(refs, refs.length, free);
+
+		// 2. promote the young objects referenced by the remembered old objects
+		for (var i = 0; i < rememberedCount; i++) {
+			var ref = remembered[i];
+			free = promoteFields(ref, free);
+			memory.set(ref + GC_OFFSET, GC_EMPTY);
+		}
+		rememberedCount = 0;
+
+		// 3. scan the promoted objects, promote the young objects they reference
+		for (var scan = oldTop; scan < free; scan += objectSize(memory.get(scan))) {
+			free = promoteFields(scan, free);
+		}
+
+		// 4. the nursery is now empty
+		oldTop = free;
+		nurseryTop = 0;
+	}
+
+	private int promoteRoots(int[] roots, int length, int free) {
+		for (var i = 0; i < length; i++) {
+			var value = roots[i];
+			if (isReference(value) && isYoung(decodeReference(value))) {
+				var forward = promote(decodeReference(value), free);
+				if (forward == free) {
+					free += objectSize(memory.get(free));
+				}
+				roots[i] = encodeReference(forward);
+			}
+		}
+		return free;
+	}
+
+	// the header of a forwarder is its only reference
+	private int promoteFields(int ref, int free) {
+		var header = memory.get(ref);
+		var start = isReference(header) ? ref : ref + OBJECT_HEADER_SIZE;
+		var end = isReference(header) ? ref + 1 : ref + objectSize(header);
+		for (var i = start; i < end; i++) {
+			var value = memory.get(i);
+			if (isReference(value) && isYoung(decodeReference(value))) {
+				var forward = promote(decodeReference(value), free);
+				if (forward == free) {
+					free += objectSize(memory.get(free));
+				}
+				memory.set(i, encodeReference(forward));
+			}
+		}
+		return free;
+	}
+
+	private void majorCollection(int[] stack, int sp, int[] cells) {
+		var toBase = (oldBase == nurserySize) ? nurserySize + oldSize : nurserySize;
+		var free = toBase;
+
+		// 1. evacuate the objects referenced from the stack and the views,
+		//    mark the handles of the stack and the cells
+		for (var cell : cells) {
+			markIfHandle(cell);
+		}
+		free = evacuateRoots(stack, sp, free, toBase);
+		var refs = views.refs();
+		free = evacuateRoots(refs, refs.length, free, toBase);
+
+		// 2. scan the evacuated objects, evacuate the objects they reference
+		for (var scan = toBase; scan < free;) {
+			var end = scan + objectSize(memory.get(scan));
+			for (var i = scan + OBJECT_HEADER_SIZE; i < end; i++) {
+				var value = memory.get(i);
+				markIfHandle(value);
+				if (isReference(value)) {
+					var forward = evacuate(decodeReference(value), free, toBase);
+					if (forward == free) {
+						free += objectSize(memory.get(free));
+					}
+					memory.set(i, encodeReference(forward));
+				}
+			}
+			scan = end;
+		}
+
+		// 3. swap the old space and the reserve, the nursery and the remembered set are now empty
+		oldBase = toBase;
+		oldTop = free;
+		nurseryTop = 0;
+		rememberedCount = 0;
+
+		// 4. free the handles that are not marked
+		handles.sweep();
+	}
+
+	private int evacuateRoots(int[] roots, int length, int free, int toBase) {
+		for (var i = 0; i < length; i++) {
+			var value = roots[i];
+			markIfHandle(value);
+			if (isReference(value)) {
+				var forward = evacuate(decodeReference(value), free, toBase);
+				if (forward == free) {
+					free += objectSize(memory.get(free));
+				}
+				roots[i] = encodeReference(forward);
+			}
+		}
+		return free;
+	}
+
+	// promote a young object, a young forwarder is replaced by the object it forwards to
+	// that is only copied if it's young
+	private int promote(int ref, int free) {
+		ref = resolve(ref);
+		return isYoung(ref) ? forward(ref, free) : ref;
+	}
+
+	// copy the object at ref to the address free if not already copied,
+	// the GC slot of the old object stores the new address
+	private int forward(int ref, int free) {
+		var forward = memory.get(ref + GC_OFFSET);
+		if (forward >= 0) {  // already forwarded
+			return forward;
+		}
+		var size = objectSize(memory.get(ref));
+		memory.copy(ref, free, size);
+		memory.set(free + GC_OFFSET, GC_EMPTY);
+		memory.set(ref + GC_OFFSET, free);
+		return free;
+	}
+
+	// a forwarder is replaced by the object it forwards to
+	private int evacuate(int ref, int free, int toBase) {
+		ref = resolve(ref);
+		if (memory.get(ref + GC_OFFSET) < 0 && free + objectSize(memory.get(ref)) > toBase + oldSize) {
+			throw new Failure("out of memory");
+		}
+		return forward(ref, free);
+	}
+}
@@ -0,0 +1,85 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// The table of the handles, a handle is the index of a Java object created at runtime
+// (the result of a native call, the value of a global variable, an int that does not fit in a small int, etc).
+// Unlike the constant pool of the Dictionary, that only contains the constants of the code,
+// the entries are reclaimed by the garbage collector, so the table does not grow without bound.
+//
+// The free entries are linked together in a free list (nextFree), the garbage collector
+// marks the handles found in the roots and in the live objects, then sweep() frees the entries
+// that are not marked.
+final class Handles {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final ExecutionStats stats;
+	private Object[] values = new Object[0];
+	private int[] nextFree = new int[0];
+	private final BitSet marks = new BitSet();
+	private int freeList = -1;
+	private int size;   // number of used entries
+
+	Handles(ExecutionStats stats) {
+		this.stats = stats;
+		grow();
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return values.length;
+	}
+
+	Object get(int index) {
+		return values[index];
+	}
+
+	// allocate an entry, return its index or -1 if the table is full
+	int allocate(Object value) {
+		requireNonNull(value);
+		var index = freeList;
+		if (index == -1) {
+			return -1;
+		}
+		freeList = nextFree[index];
+		values[index] = value;
+		size++;
+		return index;
+	}
+
+	// double the capacity of the table, the new entries are added to the free list
+	void grow() {
+		var capacity = values.length;
+		var newCapacity = Math.max(INITIAL_CAPACITY, capacity << 1);
+		values = Arrays.copyOf(values, newCapacity);
+		nextFree = Arrays.copyOf(nextFree, newCapacity);
+		for (var i = newCapacity; --i >= capacity;) {
+			nextFree[i] = freeList;
+			freeList = i;
+		}
+		stats.recordHandleTableSize(newCapacity);
+	}
+
+	void mark(int index) {
+		marks.set(index);
+	}
+
+	// free all the entries that are not marked, and clear the marks
+	void sweep() {
+		for (var i = 0; i < values.length; i++) {
+			if (values[i] != null && !marks.get(i)) {
+				values[i] = null;
+				nextFree[i] = freeList;
+				freeList = i;
+				size--;
+			}
+		}
+		marks.clear();
+	}
+}
@@ -0,0 +1,279 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeHandle;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeHandle;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.fitsSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isHandle;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// The heap of the stack interpreter, an array of tagged values (in a Java array or off-heap, see Memory),
+// each object is composed of a header (the class and a GC slot) followed by the fields.
+// The way objects are allocated and collected depends on the implementation.
+//
+// The class of an object changes when a field is added (see Dictionary.transition()), the object grows
+// in place if it can, otherwise it's relocated and the old object forwards to the new one (see relocate()).
+//
+// The heap also owns the table of the handles on the Java objects created at runtime,
+// the handles are reclaimed by the full collections (the ones that scan all the live objects).
+// The roots of a collection are the values of the stack, the global cells
+// and the references of the objects seen from Java (see view()).
+//
+// The heap is also the read-only view of the values given to the native functions.
+//
+// The heap must be closed at the end of the execution, so its memory is freed.
+abstract sealed class Heap implements HeapView, AutoCloseable permits GenerationalHeap, IncrementalHeap {
+	static final int GC_OFFSET = 1;
+	static final int GC_MARK = -1;
+	static final int GC_EMPTY = -2;
+
+	final Dictionary dict;
+	final ExecutionStats stats;
+	final Memory memory;
+	final Handles handles;
+	final ObjectViews views = new ObjectViews();
+	private final int undefined;
+
+	Heap(Memory memory, Dictionary dict, ExecutionStats stats) {
+		this.memory = memory;
+		this.dict = dict;
+		this.stats = stats;
+		this.handles = new Handles(stats);
+		this.undefined = encodeDictObject(UNDEFINED, dict);
+	}
+
+	static Heap create(ExecutionConfig config, Dictionary dict, ExecutionStats stats) {
+		return switch (config.collector()) {
+			case GENERATIONAL -> new GenerationalHeap(config, dict, stats);
+			case INCREMENTAL -> new IncrementalHeap(config, dict, stats);
+		};
+	}
+
+	// free the memory, the views of the objects that are still reachable are materialized before,
+	// so they stay valid after the execution
+	@Override
+	public final void close() {
+		materializeViews();
+		memory.close();
+	}
+
+	// copy the fields of the reachable views, a reference is decoded to the view of its object,
+	// the same view for all the references to an object, so the graph of the objects is preserved
+	private void materializeViews() {
+		views.expunge();
+		var viewMap = new HashMap<Integer, JSObject>();
+		for (var index = 0; index < views.capacity(); index++) {
+			if (views.view(index) instanceof JSObject view) {
+				viewMap.putIfAbsent(resolve(decodeReference(views.get(index))), view);
+			}
+		}
+		// the views created while decoding the fields are added to the table and materialized too
+		for (var index = 0; index < views.capacity(); index++) {
+			if (!(views.view(index) instanceof JSObject view)) {
+				continue;
+			}
+			var ref = resolve(decodeReference(views.get(index)));
+			var values = new Object[view.length()];
+			for (var i = 0; i < values.length; i++) {
+				var value = memory.get(ref + OBJECT_HEADER_SIZE + i);
+				values[i] = isReference(value)
+						? viewMap.computeIfAbsent(resolve(decodeReference(value)), _ -> view(value))
+						: decodeAnyValue(value, dict, this);
+			}
+			views.materialize(index, values);
+		}
+	}
+
+	final int get(int address) {
+		return memory.get(address);
+	}
+
+	final void set(int address, int value) {
+		memory.set(address, value);
+	}
+
+	// size of an object (header included) given the tag value of its class
+	final int objectSize(int vClass) {
+		return objectSize((JSObject) decodeDictObject(vClass, dict));
+	}
+
+	// an object has at least one field slot, so an empty object can get its first field in place
+	// and a relocated object has room for its size (see relocate())
+	static int objectSize(JSObject clazz) {
+		return OBJECT_HEADER_SIZE + Math.max(1, clazz.length());
+	}
+
+	// size of the object at address, the object may have been relocated
+	final int sizeAt(int address) {
+		var header = memory.get(address);
+		return isReference(header) ? decodeSmallInt(memory.get(address + OBJECT_HEADER_SIZE)) : objectSize(header);
+	}
+
+	// the address of an object, following the forwarding addresses if the object has been relocated
+	final int resolve(int ref) {
+		int header;
+		while (isReference(header = memory.get(ref))) {
+			ref = decodeReference(header);
+		}
+		return ref;
+	}
+
+	// an object that gets a new field and has no room for it is relocated to newRef,
+	// the fields are copied and the old object becomes a forwarder, its header is the reference
+	// of the new object and its first field its size, so the heap stays parseable,
+	// the references to the old object are updated by the garbage collector
+	final void relocate(int ref, int newRef, int size) {
+		relocateBarrier(ref, newRef, size);
+		memory.copy(ref + OBJECT_HEADER_SIZE, newRef + OBJECT_HEADER_SIZE, size - OBJECT_HEADER_SIZE);
+		memory.set(ref, encodeReference(newRef));
+		memory.set(ref + OBJECT_HEADER_SIZE, encodeSmallInt(size));
+	}
+
+	// called before an object is relocated, so the garbage collector sees the references
+	// of the old object and of the forwarder
+	void relocateBarrier(int ref, int newRef, int size) {
+		// empty
+	}
+
+	@Override
+	public final int undefined() {
+		return undefined;
+	}
+
+	// a lazy view of an object of the heap, the fields are decoded when they are read,
+	// the object stays alive and the view stays valid (even if the object moves) as long as the view is reachable,
+	// the view only has the fields of the object when the view is created,
+	// once the heap is closed the view reads the fields materialized by close()
+	final JSObject view(int tagValue) {
+		var index = views.add(tagValue);
+		var clazz = (JSObject) decodeDictObject(memory.get(resolve(decodeReference(tagValue))), dict);
+		var view = clazz.lazyMirror(fieldIndex -> {
+			var values = views.values(index);
+			if (values != null) {
+				return values[(int) fieldIndex];
+			}
+			var ref = resolve(decodeReference(views.get(index)));
+			return decodeAnyValue(memory.get(ref + OBJECT_HEADER_SIZE + (int) fieldIndex), dict, this);
+		});
+		views.register(index, view);
+		return view;
+	}
+
+	@Override
+	public final Object decode(int tagValue) {
+		return decodeAnyValue(tagValue, dict, this);
+	}
+
+	@Override
+	public final String format(int tagValue) {
+		if (!isReference(tagValue)) {
+			return String.valueOf(decode(tagValue));
+		}
+		var builder = new StringBuilder();
+		format(tagValue, builder, new BitSet(), this, memory::get, dict);
+		return builder.toString();
+	}
+
+	// same format as JSObject.toString() on a mirror, the objects being formatted are
+	// in path so a cycle is printed as "..." instead of overflowing the Java stack,
+	// memory gives the int at an address, so a snapshot of a heap can be formatted too
+	static void format(int tagValue, StringBuilder builder, BitSet path, HeapView view, IntUnaryOperator memory, Dictionary dict) {
+		if (!isReference(tagValue)) {
+			builder.append(view.decode(tagValue));
+			return;
+		}
+		var address = decodeReference(tagValue);
+		int header;
+		while (isReference(header = memory.applyAsInt(address))) {  // a relocated object
+			address = decodeReference(header);
+		}
+		var ref = address;
+		if (path.get(ref)) {
+			builder.append("... // object");
+			return;
+		}
+		path.set(ref);
+		var clazz = (JSObject) decodeDictObject(header, dict);
+		builder.append("{ // object\n");
+		clazz.forEach((key, fieldIndex) -> {
+			builder.append("  ").append(key).append(": ");
+			format(memory.applyAsInt(ref + OBJECT_HEADER_SIZE + (int) fieldIndex), builder, path, view, memory, dict);
+			builder.append('\n');
+		});
+		builder.append("  proto: null\n}");
+		path.clear(ref);
+	}
+
+	// encode a Java object created at runtime as a small int or a handle (an int that does not fit
+	// in a small int is boxed in a handle),
+	// if the table of handles is full, a full collection reclaims the dead handles
+	// and the table grows if it's still more than half full,
+	// the values of the stack between 0 and sp and the cells are the roots of the collection
+	final int encodeValue(Object value, int[] stack, int sp, int[] cells) {
+		if (value instanceof Integer smallInt && fitsSmallInt(smallInt)) {
+			return encodeSmallInt(smallInt);
+		}
+		if (value == UNDEFINED) {
+			return undefined;
+		}
+		var index = handles.allocate(value);
+		if (index == -1) {
+			collectAll(stack, sp, cells);
+			if (handles.size() > handles.capacity() / 2) {
+				handles.grow();
+			}
+			index = handles.allocate(value);
+		}
+		markHandle(index);
+		return encodeHandle(index);
+	}
+
+	// called for each new handle, an incremental collector marks the handles allocated during the marking
+	void markHandle(int index) {
+		// empty
+	}
+
+	// mark the handle if the value is a handle
+	final void markIfHandle(int value) {
+		if (isHandle(value)) {
+			handles.mark(decodeHandle(value));
+		}
+	}
+
+	// call the consumer with the address of each object of the heap
+	abstract void forEachObject(IntConsumer consumer);
+
+	// allocate an object of size ints (header included), return the address or -1
+	// if a garbage collection is needed
+	abstract int allocate(int vClass, int size);
+
+	// store a field value, with the write barrier required by the garbage collector
+	abstract void putField(int ref, int fieldIndex, int value);
+
+	// grow the object of size ints to newSize ints in place if it's the last allocated object
+	// and there is room after it, return false otherwise
+	abstract boolean extend(int ref, int size, int newSize);
+
+	// garbage collect the heap so an object of size ints can be allocated,
+	// the values of the stack between 0 and sp and the cells are the roots,
+	// the values of the stack may be rewritten in place
+	abstract void collect(int[] stack, int sp, int[] cells, int size);
+
+	// a full collection of the heap, all the dead objects and the dead handles are reclaimed
+	abstract void collectAll(int[] stack, int sp, int[] cells);
+}
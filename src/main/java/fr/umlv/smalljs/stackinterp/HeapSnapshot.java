@@ -0,0 +1,399 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeHandle;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.isHandle;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.function.IntConsumer;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// Binary format (.sjsh) of a snapshot of the heap of an execution of the stack interpreter,
+// written by the function snapshot(path) of the script (see StackInterpreter.snapshot()).
+//
+// All the values are big endian ints, the header uses the same encoding as CodeFile.
+//   magic version
+//   cell_count cell_name*
+//   constant_count constant*          (the dictionary, see CodeFile)
+//   handle_capacity handle_count handle*
+//   padding                           (0 to 3 bytes, so the sections below are aligned)
+//   stack_size value*                 (the values of the stack, the locals and the activations)
+//   cell_count value*                 (the global cells, 0 means not resolved)
+//   memory_size value*                (the memory of the heap as is)
+//   object_count address*             (the address of each live object, in address order)
+//
+// A handle is
+//   index kind value
+// where kind is STRING string, INTEGER value or OTHER description (the name of a function
+// or a description of the Java object), so the Java objects are not restored as is.
+//
+// The heap is fully collected before being written, so all the objects are alive,
+// the tagged values are stored as is, so a reference is still the address shifted by 2.
+//
+// The reader maps the file in memory, the sections of tagged values are not copied,
+// they are read from the file each time a value is requested.
+final class HeapSnapshot implements HeapView, AutoCloseable {
+	private static final int MAGIC = 0x534A5348;  // SJSH
+	private static final int VERSION = 1;
+
+	private static final int STRING_KIND = 1;   // same kinds as CodeFile
+	private static final int INTEGER_KIND = 2;
+	private static final int OTHER_KIND = 5;
+
+	// the layout of the ints of a snapshot
+	static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT.withOrder(ByteOrder.BIG_ENDIAN);
+
+	// the native function "snapshot", the calls are intercepted by the interpreter
+	// because a snapshot needs the roots (the stack and the cells), see StackInterpreter.snapshot()
+	static final NativeFunction NATIVE_FUNCTION = new NativeFunction() {
+		@Override
+		public int call0(HeapView heap, int receiver) {
+			throw new AssertionError();
+		}
+		@Override
+		public int call1(HeapView heap, int receiver, int arg0) {
+			throw new AssertionError();
+		}
+		@Override
+		public int call2(HeapView heap, int receiver, int arg0, int arg1) {
+			throw new AssertionError();
+		}
+		@Override
+		public int call3(HeapView heap, int receiver, int arg0, int arg1, int arg2) {
+			throw new AssertionError();
+		}
+	};
+
+	private final Arena arena;
+	private final Dictionary dict;
+	private final Object[] handles;
+	private final MemorySegment stack;
+	private final MemorySegment cells;
+	private final MemorySegment memory;
+	private final MemorySegment objects;
+	private final int undefined;
+
+	private HeapSnapshot(Arena arena, Dictionary dict, Object[] handles,
+	                     MemorySegment stack, MemorySegment cells, MemorySegment memory, MemorySegment objects) {
+		this.arena = arena;
+		this.dict = dict;
+		this.handles = handles;
+		this.stack = stack;
+		this.cells = cells;
+		this.memory = memory;
+		this.objects = objects;
+		this.undefined = encodeDictObject(UNDEFINED, dict);
+	}
+
+	// write the heap, the values of the stack between 0 and sp and the cells,
+	// the heap should be collected first so only the live objects are written
+	static void write(Path path, Heap heap, int[] stack, int sp, int[] cells) throws IOException {
+		var dict = heap.dict;
+		// the header has a variable size, so it's written first in an array
+		var bytes = new ByteArrayOutputStream();
+		var output = new DataOutputStream(bytes);
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeInt(dict.cellCount());
+		for (var i = 0; i < dict.cellCount(); i++) {
+			CodeFile.writeString(output, dict.cellName(i));
+		}
+		output.writeInt(dict.constantCount());
+		for (var i = 0; i < dict.constantCount(); i++) {
+			CodeFile.writeConstant(output, dict.getConst(i));
+		}
+		var handles = heap.handles;
+		output.writeInt(handles.capacity());
+		output.writeInt(handles.size());
+		for (var i = 0; i < handles.capacity(); i++) {
+			var value = handles.get(i);
+			if (value != null) {
+				output.writeInt(i);
+				writeHandle(output, value);
+			}
+		}
+		while (bytes.size() % Integer.BYTES != 0) {
+			output.writeByte(0);
+		}
+		var header = bytes.toByteArray();
+
+		var addresses = new ArrayList<Integer>();
+		heap.forEachObject(addresses::add);
+		addresses.sort(null);
+		var memorySize = heap.memory.size();
+		var size = header.length + Integer.BYTES * (4L + sp + cells.length + memorySize + addresses.size());
+
+		// then the sections are written in the mapped file
+		try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				   StandardOpenOption.READ, StandardOpenOption.WRITE);
+		     var arena = Arena.ofConfined()) {
+			var segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena);
+			MemorySegment.copy(header, 0, segment, ValueLayout.JAVA_BYTE, 0, header.length);
+			var offset = (long) header.length;
+			offset = writeInts(segment, offset, stack, sp);
+			offset = writeInts(segment, offset, cells, cells.length);
+			segment.set(INT, offset, memorySize);
+			heap.memory.copyTo(segment, offset + Integer.BYTES);
+			offset += Integer.BYTES * (1L + memorySize);
+			segment.set(INT, offset, addresses.size());
+			for (var address : addresses) {
+				offset += Integer.BYTES;
+				segment.set(INT, offset, address);
+			}
+			segment.force();
+		}
+	}
+
+	private static void writeHandle(DataOutputStream output, Object value) throws IOException {
+		switch (value) {
+			case String s -> {
+				output.writeInt(STRING_KIND);
+				CodeFile.writeString(output, s);
+			}
+			case Integer i -> {
+				output.writeInt(INTEGER_KIND);
+				output.writeInt(i);
+			}
+			case JSObject object -> {
+				output.writeInt(OTHER_KIND);
+				CodeFile.writeString(output, String.valueOf(object.name()));
+			}
+			default -> {
+				output.writeInt(OTHER_KIND);
+				CodeFile.writeString(output, value.getClass().getSimpleName() + " " + value);
+			}
+		}
+	}
+
+	// write length then the values, return the offset after the values
+	private static long writeInts(MemorySegment segment, long offset, int[] values, int length) {
+		segment.set(INT, offset, length);
+		MemorySegment.copy(values, 0, segment, INT, offset + Integer.BYTES, length);
+		return offset + Integer.BYTES * (1L + length);
+	}
+
+	// map a snapshot in memory, the snapshot must be closed to unmap the file
+	static HeapSnapshot read(Path path) throws IOException {
+		var arena = Arena.ofConfined();
+		try {
+			MemorySegment segment;
+			try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+			}
+			var buffer = segment.asByteBuffer();
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("not a heap snapshot " + path);
+			}
+			var version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported version " + version + " " + path);
+			}
+			var dict = new Dictionary();
+			var cellCount = buffer.getInt();
+			for (var i = 0; i < cellCount; i++) {
+				dict.cellIndex(CodeFile.readString(buffer));
+			}
+			var constantCount = buffer.getInt();
+			for (var i = 0; i < constantCount; i++) {
+				var constant = CodeFile.readConstant(buffer, dict);
+				// undefined is already in the dictionary at index 0
+				if (dict.index(constant) != i) {
+					throw new IOException("duplicate constant " + constant + " " + path);
+				}
+			}
+			var handles = new Object[buffer.getInt()];
+			var handleCount = buffer.getInt();
+			for (var i = 0; i < handleCount; i++) {
+				var index = buffer.getInt();
+				handles[index] = readHandle(buffer);
+			}
+			var offset = (long) buffer.position() + (-buffer.position() & (Integer.BYTES - 1));
+			var stack = readInts(segment, offset);
+			offset += Integer.BYTES + stack.byteSize();
+			var cells = readInts(segment, offset);
+			offset += Integer.BYTES + cells.byteSize();
+			var memory = readInts(segment, offset);
+			offset += Integer.BYTES + memory.byteSize();
+			var objects = readInts(segment, offset);
+			offset += Integer.BYTES + objects.byteSize();
+			if (offset != segment.byteSize()) {
+				throw new IOException("trailing bytes " + path);
+			}
+			if (cells.byteSize() != cellCount * (long) Integer.BYTES) {
+				throw new IOException("wrong number of cells " + path);
+			}
+			return new HeapSnapshot(arena, dict, handles, stack, cells, memory, objects);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException
+				 | ArithmeticException | IllegalArgumentException e) {
+			arena.close();
+			throw new IOException("corrupted heap snapshot " + path, e);
+		} catch (IOException e) {
+			arena.close();
+			throw e;
+		}
+	}
+
+	private static Object readHandle(ByteBuffer buffer) throws IOException {
+		var kind = buffer.getInt();
+		return switch (kind) {
+			case STRING_KIND, OTHER_KIND -> CodeFile.readString(buffer);
+			case INTEGER_KIND -> buffer.getInt();
+			default -> throw new IOException("unknown handle kind " + kind);
+		};
+	}
+
+	// a view of the section of ints starting with its length at offset
+	private static MemorySegment readInts(MemorySegment segment, long offset) {
+		var length = segment.get(INT, offset);
+		if (length < 0) {
+			throw new IllegalArgumentException("negative length " + length);
+		}
+		return segment.asSlice(offset + Integer.BYTES, length * (long) Integer.BYTES);
+	}
+
+	// unmap the file, the snapshot and its object views can not be used after
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	int stackSize() {
+		return (int) (stack.byteSize() / Integer.BYTES);
+	}
+
+	int stack(int index) {
+		return stack.getAtIndex(INT, index);
+	}
+
+	int cellCount() {
+		return (int) (cells.byteSize() / Integer.BYTES);
+	}
+
+	String cellName(int index) {
+		return dict.cellName(index);
+	}
+
+	int cell(int index) {
+		return cells.getAtIndex(INT, index);
+	}
+
+	int memorySize() {
+		return (int) (memory.byteSize() / Integer.BYTES);
+	}
+
+	int get(int address) {
+		return memory.getAtIndex(INT, address);
+	}
+
+	int objectCount() {
+		return (int) (objects.byteSize() / Integer.BYTES);
+	}
+
+	// call the consumer with the address of each object, in address order
+	void forEachObject(IntConsumer consumer) {
+		for (var i = 0; i < objectCount(); i++) {
+			consumer.accept(objects.getAtIndex(INT, i));
+		}
+	}
+
+	@Override
+	public int undefined() {
+		return undefined;
+	}
+
+	// an object is decoded as a lazy view on the mapped file, a Java object of a handle
+	// is decoded as its description if it's not a string or an int
+	@Override
+	public Object decode(int tagValue) {
+		if (isSmallInt(tagValue)) {
+			return decodeSmallInt(tagValue);
+		}
+		if (isReference(tagValue)) {
+			var address = decodeReference(tagValue);
+			while (isReference(get(address))) {  // a relocated object
+				address = decodeReference(get(address));
+			}
+			var ref = address;
+			var clazz = (JSObject) decodeDictObject(get(ref), dict);
+			return clazz.lazyMirror(fieldIndex -> decode(get(ref + OBJECT_HEADER_SIZE + (int) fieldIndex)));
+		}
+		if (isHandle(tagValue)) {
+			return handles[decodeHandle(tagValue)];
+		}
+		return decodeDictObject(tagValue, dict);
+	}
+
+	@Override
+	public String format(int tagValue) {
+		if (!isReference(tagValue)) {
+			return String.valueOf(decode(tagValue));
+		}
+		var builder = new StringBuilder();
+		Heap.format(tagValue, builder, new BitSet(), this, this::get, dict);
+		return builder.toString();
+	}
+
+	// the number of objects and the size (in ints, header included) of the objects of a class
+	record ClassHistogram(String className, int count, long size) {}
+
+	// the histogram of the objects by class, the biggest classes first,
+	// a class is named by its fields, e.g. "{ x, y }"
+	List<ClassHistogram> histogram() {
+		var counts = new HashMap<Integer, int[]>();  // class -> count
+		forEachObject(address -> counts.computeIfAbsent(get(address), _ -> new int[1])[0]++);
+		var histogram = new ArrayList<ClassHistogram>();
+		counts.forEach((vClass, count) -> {
+			var clazz = (JSObject) decodeDictObject(vClass, dict);
+			var fieldNames = new String[clazz.length()];
+			clazz.forEach((fieldName, slot) -> fieldNames[(int) slot] = fieldName);
+			var className = new StringJoiner(", ", "{ ", " }").setEmptyValue("{ }");
+			for (var fieldName : fieldNames) {
+				className.add(fieldName);
+			}
+			histogram.add(new ClassHistogram(className.toString(), count[0], (long) count[0] * Heap.objectSize(clazz)));
+		});
+		histogram.sort(Comparator.comparingLong(ClassHistogram::size).reversed()
+				.thenComparing(ClassHistogram::className));
+		return histogram;
+	}
+
+	// print the histogram, like jmap -histo
+	void printHistogram(PrintStream out) {
+		out.printf("%4s %10s %10s  %s%n", "num", "#objects", "#ints", "class");
+		var num = 0;
+		var totalCount = 0L;
+		var totalSize = 0L;
+		for (var entry : histogram()) {
+			out.printf("%4d %10d %10d  %s%n", ++num, entry.count(), entry.size(), entry.className());
+			totalCount += entry.count();
+			totalSize += entry.size();
+		}
+		out.printf("%-4s %10d %10d%n", "total", totalCount, totalSize);
+	}
+}
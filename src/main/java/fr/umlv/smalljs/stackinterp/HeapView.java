@@ -0,0 +1,16 @@
+package fr.umlv.smalljs.stackinterp;
+
+// A read-only view of the values of the interpreter, the native functions use it
+// to read their arguments (tagged values) without decoding them first.
+interface HeapView {
+	// the tagged value of undefined
+	int undefined();
+
+	// decode a tagged value to a Java object,
+	// an object of the heap is decoded as a lazy view (see Heap.view())
+	Object decode(int tagValue);
+
+	// the textual representation of a tagged value, the same as decode(tagValue).toString()
+	// but the objects of the heap are not copied
+	String format(int tagValue);
+}
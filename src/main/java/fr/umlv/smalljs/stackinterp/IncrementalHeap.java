@@ -0,0 +1,347 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// A non moving heap collected by an incremental mark and sweep collector,
+// to bound the pause times, the work is done by small steps during each allocation.
+//
+// The marking is a tri-color marking, the color of an object is stored in its GC slot
+//   white (GC_EMPTY): not yet marked, gray (GC_GRAY): marked but fields not scanned,
+//   black (GC_MARK): marked and fields scanned.
+// A cycle starts by shading all the objects referenced from the stack (the only roots),
+// then during the marking, the objects are allocated black and the write barrier of putField()
+// shades the value that is overwritten (snapshot at the beginning), so all the objects reachable
+// when the cycle started are marked. The stack does not need a barrier, it was entirely
+// scanned when the cycle started.
+// The sweeping is also incremental, it walks the heap, re-colors the black objects in white
+// and coalesces the dead objects and the free chunks into a free list.
+//
+// The handles are marked like the objects (a handle allocated during the marking is marked),
+// the cells are roots like the stack, and the dead handles are freed at the end of the marking.
+// The references of the object views (see Heap.view()) are also roots.
+//
+// A free chunk starts with its size encoded as a small int followed by the address of
+// the next free chunk, so the heap stays parseable (a class is never a small int).
+//
+// A relocated object (see Heap.relocate()) is marked like an object whose only field is
+// its forwarding address, and the marking replaces the references to it found in the roots
+// and in the scanned objects, so it dies at the latest during the next cycle.
+final class IncrementalHeap extends Heap {
+	static final int GC_GRAY = -4;
+
+	private static final int MARK_RATE = 4;    // ints scanned per int allocated
+	private static final int SWEEP_RATE = 8;   // ints swept per int allocated
+
+	private enum Phase { IDLE, MARKING, SWEEPING }
+
+	private final int threshold;   // a cycle starts when there is less free ints
+	private Phase phase = Phase.IDLE;
+
+	private int top;               // allocation pointer after the last object
+	private int freeList = -1;     // first free chunk
+	private int freeCount;         // number of free ints (free chunks + after top)
+
+	private int[] grayStack = new int[16];
+	private int grayCount;
+
+	private int sweepCursor;
+	private int sweepLimit;
+	private int freeRunStart = -1;
+
+	IncrementalHeap(ExecutionConfig config, Dictionary dict, ExecutionStats stats) {
+		super(Memory.create(config.storage(), config.heapSize()), dict, stats);
+		this.threshold = config.heapSize() / 2;
+		this.freeCount = config.heapSize();
+	}
+
+	private int chunkSize(int address) {
+		var header = memory.get(address);
+		return isSmallInt(header) ? decodeSmallInt(header) : sizeAt(address);
+	}
+
+	@Override
+	void forEachObject(IntConsumer consumer) {
+		for (var address = 0; address < top; address += chunkSize(address)) {
+			var header = memory.get(address);
+			if (!isSmallInt(header) && !isReference(header)) {  // not a free chunk nor a forwarder
+				consumer.accept(address);
+			}
+		}
+	}
+
+	@Override
+	int allocate(int vClass, int size) {
+		if (phase == Phase.IDLE && freeCount - size < threshold) {
+			return -1;  // a new cycle is needed
+		}
+		var ref = allocateChunk(size);
+		if (ref == -1) {
+			return -1;
+		}
+		freeCount -= size;
+		memory.set(ref, vClass);
+		memory.set(ref + GC_OFFSET, (phase == Phase.MARKING) ? GC_MARK : GC_EMPTY);
+		if (phase != Phase.IDLE) {
+			var start = System.nanoTime();
+			step(size);
+			stats.recordIncrementalPause(System.nanoTime() - start);
+		}
+		return ref;
+	}
+
+	// first fit in the free list, the object is allocated at the end of the chunk,
+	// so the chunk stays in the free list if it's big enough
+	private int allocateChunk(int size) {
+		for (int previous = -1, chunk = freeList; chunk != -1; previous = chunk, chunk = memory.get(chunk + 1)) {
+			var rest = decodeSmallInt(memory.get(chunk)) - size;
+			if (rest < 0) {
+				continue;
+			}
+			if (rest >= 2) {
+				memory.set(chunk, encodeSmallInt(rest));
+				return chunk + rest;
+			}
+			// unlink the chunk
+			var next = memory.get(chunk + 1);
+			if (previous == -1) {
+				freeList = next;
+			} else {
+				memory.set(previous + 1, next);
+			}
+			if (rest == 1) {  // too small to be a free chunk
+				memory.set(chunk, encodeSmallInt(1));
+				freeCount--;
+				return chunk + 1;
+			}
+			return chunk;
+		}
+		if (top + size <= memory.size()) {
+			var ref = top;
+			top += size;
+			return ref;
+		}
+		return -1;
+	}
+
+	private boolean canAllocate(int size) {
+		for (var chunk = freeList; chunk != -1; chunk = memory.get(chunk + 1)) {
+			if (decodeSmallInt(memory.get(chunk)) >= size) {
+				return true;
+			}
+		}
+		return top + size <= memory.size();
+	}
+
+	// snapshot at the beginning write barrier, the overwritten value is shaded
+	@Override
+	void putField(int ref, int fieldIndex, int value) {
+		var address = ref + OBJECT_HEADER_SIZE + fieldIndex;
+		if (phase == Phase.MARKING) {
+			shade(memory.get(address));
+		}
+		memory.set(address, value);
+	}
+
+	// only the object before top can grow
+	@Override
+	boolean extend(int ref, int size, int newSize) {
+		if (ref + size != top || ref + newSize > memory.size()) {
+			return false;
+		}
+		top = ref + newSize;
+		freeCount -= newSize - size;
+		return true;
+	}
+
+	// the fields of the old object are not scanned once it's a forwarder, and the new object
+	// may be black, so like the write barrier, the fields are shaded
+	@Override
+	void relocateBarrier(int ref, int newRef, int size) {
+		if (phase == Phase.MARKING) {
+			for (var i = ref + OBJECT_HEADER_SIZE; i < ref + size; i++) {
+				shade(memory.get(i));
+			}
+		}
+	}
+
+	@Override
+	void markHandle(int index) {
+		if (phase == Phase.MARKING) {
+			handles.mark(index);
+		}
+	}
+
+	private void shade(int value) {
+		markIfHandle(value);
+		if (!isReference(value)) {
+			return;
+		}
+		var ref = decodeReference(value);
+		if (memory.get(ref + GC_OFFSET) != GC_EMPTY) {
+			return;
+		}
+		memory.set(ref + GC_OFFSET, GC_GRAY);
+		if (grayCount == grayStack.length) {
+			grayStack = Arrays.copyOf(grayStack, grayCount << 1);
+		}
+		grayStack[grayCount++] = ref;
+	}
+
+	@Override
+	void collect(int[] stack, int sp, int[] cells, int size) {
+		var start = System.nanoTime();
+		if (phase == Phase.IDLE) {
+			startCycle(stack, sp, cells);
+		}
+		if (!canAllocate(size)) {
+			// out of memory, finish the current cycle
+			finishCycle();
+			if (!canAllocate(size)) {
+				// the objects that died during the cycle were not collected
+				startCycle(stack, sp, cells);
+				finishCycle();
+			}
+			if (freeCount - size < threshold) {
+				startCycle(stack, sp, cells);
+			}
+		}
+		stats.recordIncrementalPause(System.nanoTime() - start);
+	}
+
+	// finish the current cycle (the handles that died during the cycle may not be collected)
+	// and do a complete cycle
+	@Override
+	void collectAll(int[] stack, int sp, int[] cells) {
+		var start = System.nanoTime();
+		finishCycle();
+		startCycle(stack, sp, cells);
+		finishCycle();
+		stats.recordIncrementalPause(System.nanoTime() - start);
+	}
+
+	private void startCycle(int[] stack, int sp, int[] cells) {
+		phase = Phase.MARKING;
+		for (var cell : cells) {
+			markIfHandle(cell);
+		}
+		for (var i = 0; i < sp; i++) {
+			shade(stack[i]);
+			stack[i] = resolveValue(stack[i]);
+		}
+		views.expunge();
+		var refs = views.refs();
+		for (var i = 0; i < refs.length; i++) {
+			shade(refs[i]);
+			refs[i] = resolveValue(refs[i]);
+		}
+	}
+
+	// a reference to a forwarder is replaced by the reference of the object it forwards to,
+	// the forwarder was shaded, it may still be referenced by a black object
+	private int resolveValue(int value) {
+		return isReference(value) ? encodeReference(resolve(decodeReference(value))) : value;
+	}
+
+	private void finishCycle() {
+		if (phase != Phase.IDLE) {
+			step(Integer.MAX_VALUE);
+		}
+		if (phase != Phase.IDLE) {
+			step(Integer.MAX_VALUE);
+		}
+	}
+
+	private void step(int size) {
+		switch (phase) {
+			case MARKING -> mark(size == Integer.MAX_VALUE ? size : size * MARK_RATE);
+			case SWEEPING -> sweep(size == Integer.MAX_VALUE ? size : size * SWEEP_RATE);
+			case IDLE -> throw new AssertionError();
+		}
+	}
+
+	private void mark(int budget) {
+		while (budget > 0 && grayCount > 0) {
+			var ref = grayStack[--grayCount];
+			var header = memory.get(ref);
+			if (isReference(header)) {  // a forwarder
+				shade(header);
+				memory.set(ref + GC_OFFSET, GC_MARK);
+				budget -= OBJECT_HEADER_SIZE;
+				continue;
+			}
+			var end = ref + objectSize(header);
+			for (var i = ref + OBJECT_HEADER_SIZE; i < end; i++) {
+				var value = memory.get(i);
+				shade(value);
+				memory.set(i, resolveValue(value));
+			}
+			memory.set(ref + GC_OFFSET, GC_MARK);
+			budget -= end - ref;
+		}
+		if (grayCount == 0) {
+			// all the live handles are marked
+			handles.sweep();
+			// start the sweeping, the free list is rebuilt by the sweeper
+			phase = Phase.SWEEPING;
+			sweepCursor = 0;
+			sweepLimit = top;
+			freeList = -1;
+			freeCount = memory.size() - top;
+		}
+	}
+
+	private void sweep(int budget) {
+		while (budget > 0 && sweepCursor < sweepLimit) {
+			var address = sweepCursor;
+			var size = chunkSize(address);
+			if (isSmallInt(memory.get(address)) || memory.get(address + GC_OFFSET) == GC_EMPTY) {
+				// a free chunk or a dead object
+				if (freeRunStart == -1) {
+					freeRunStart = address;
+				}
+			} else {
+				// a live object
+				memory.set(address + GC_OFFSET, GC_EMPTY);
+				flushFreeRun(address);
+			}
+			sweepCursor += size;
+			budget -= size;
+		}
+		if (sweepCursor >= sweepLimit) {
+			flushFreeRun(sweepLimit);
+			phase = Phase.IDLE;
+			stats.recordIncrementalCycle();
+		}
+	}
+
+	private void flushFreeRun(int end) {
+		if (freeRunStart == -1) {
+			return;
+		}
+		var start = freeRunStart;
+		freeRunStart = -1;
+		var size = end - start;
+		if (end == top) {  // give the ints back to the allocation pointer
+			top = start;
+			freeCount += size;
+			return;
+		}
+		if (size == 1) {  // too small to be a free chunk
+			memory.set(start, encodeSmallInt(1));
+			return;
+		}
+		memory.set(start, encodeSmallInt(size));
+		memory.set(start + 1, freeList);
+		freeList = start;
+		freeCount += size;
+	}
+}
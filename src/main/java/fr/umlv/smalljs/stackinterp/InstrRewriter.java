@@ -1,27 +1,40 @@
 package fr.umlv.smalljs.stackinterp;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Instructions.ADD;
 import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.DIV;
 import static fr.umlv.smalljs.stackinterp.Instructions.DUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.EQ;
 import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.GE;
 import static fr.umlv.smalljs.stackinterp.Instructions.GET;
 import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
+import static fr.umlv.smalljs.stackinterp.Instructions.GT;
 import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
+import static fr.umlv.smalljs.stackinterp.Instructions.LE;
 import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
-import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP_CELL;
+import static fr.umlv.smalljs.stackinterp.Instructions.LT;
+import static fr.umlv.smalljs.stackinterp.Instructions.MOD;
+import static fr.umlv.smalljs.stackinterp.Instructions.MUL;
+import static fr.umlv.smalljs.stackinterp.Instructions.NE;
 import static fr.umlv.smalljs.stackinterp.Instructions.NEW;
 import static fr.umlv.smalljs.stackinterp.Instructions.POP;
 import static fr.umlv.smalljs.stackinterp.Instructions.PUT;
-import static fr.umlv.smalljs.stackinterp.Instructions.REGISTER;
+import static fr.umlv.smalljs.stackinterp.Instructions.REGISTER_CELL;
 import static fr.umlv.smalljs.stackinterp.Instructions.RET;
 import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
-import static fr.umlv.smalljs.stackinterp.TagValues.encodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.Instructions.TAILCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.SUB;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.fitsSmallInt;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import fr.umlv.smalljs.ast.Expr;
@@ -43,10 +56,21 @@ import fr.umlv.smalljs.rt.JSObject;
 
 final class InstrRewriter {
 	static final class InstrBuffer {
+		private final boolean optimize;
+		private final boolean foldOperators;
+		// true if a call to an operator was folded
+		private boolean foldsOperators;
 		private int[] instrs;
 		private int size;
+		// the line of the instructions emitted and the pc where each line starts
+		private int line;
+		private int[] linePcs = new int[8];
+		private int[] lines = new int[8];
+		private int lineCount;
 
-		InstrBuffer() {
+		InstrBuffer(boolean optimize, boolean foldOperators) {
+			this.optimize = optimize;
+			this.foldOperators = foldOperators;
 			instrs = new int[32];
 		}
 
@@ -54,10 +78,26 @@ final class InstrRewriter {
 			if (size == instrs.length) {
 				instrs = Arrays.copyOf(instrs, size << 1);
 			}
+			// the line only changes between two instructions
+			if (lineCount == 0 || lines[lineCount - 1] != line) {
+				if (lineCount == lines.length) {
+					linePcs = Arrays.copyOf(linePcs, lineCount << 1);
+					lines = Arrays.copyOf(lines, lineCount << 1);
+				}
+				linePcs[lineCount] = size;
+				lines[lineCount++] = line;
+			}
 			instrs[size++] = value;
 			return this;
 		}
 
+		// set the line of the next instructions, return the previous line
+		int line(int line) {
+			var previousLine = this.line;
+			this.line = line;
+			return previousLine;
+		}
+
 		int label() {
 			return size;
 		}
@@ -71,30 +111,74 @@ final class InstrRewriter {
 		}
 
 		int[] toInstrs() {
-			return Arrays.copyOf(instrs, size);
+			var instrs = Arrays.copyOf(this.instrs, size);
+			if (!optimize) {
+				return instrs;
+			}
+			linePcs = Arrays.copyOf(linePcs, lineCount);
+			return Peephole.optimize(instrs, linePcs);
+		}
+
+		// must be called after toInstrs()
+		byte[] toLineTable() {
+			var builder = new LineTable.Builder();
+			for (var i = 0; i < lineCount; i++) {
+				builder.add(linePcs[i], lines[i]);
+			}
+			return builder.toLineTable();
 		}
 	}
 
+	// the operators that are compiled to an intrinsic instruction if they are not local variables
+	private static final Map<String, Integer> INTRINSICS = Map.ofEntries(
+			Map.entry("+", ADD), Map.entry("-", SUB), Map.entry("*", MUL), Map.entry("/", DIV), Map.entry("%", MOD),
+			Map.entry("==", EQ), Map.entry("!=", NE),
+			Map.entry("<", LT), Map.entry("<=", LE), Map.entry(">", GT), Map.entry(">=", GE));
+
 	static JSObject createFunction(String name, List<String> parameters, Block body, Dictionary dict) {
+		return createFunction(name, parameters, body, dict, true);
+	}
+
+	// if optimize is false, the code is not optimized (the function and all the nested functions),
+	// there is no escape analysis, no constant folding, no dead code elimination and no peephole optimization
+	static JSObject createFunction(String name, List<String> parameters, Block body, Dictionary dict, boolean optimize) {
+		return createFunction(new Fun(name, parameters, false, body, body.lineNumber()), dict, optimize, optimize);
+	}
+
+	// the code of the function optimized without folding the calls to the operators,
+	// used if the operators are not the builtin ones (see Code.unfolded())
+	static Code createUnfoldedCode(Fun fun, Dictionary dict) {
+		return Code.of(createFunction(fun, dict, true, false));
+	}
+
+	private static JSObject createFunction(Fun fun, Dictionary dict, boolean optimize, boolean foldOperators) {
 		var env = JSObject.newEnv(null);
 
 		env.register("this", 0);
-		for (var parameter : parameters) {
+		for (var parameter : fun.parameters()) {
 			env.register(parameter, env.length());
 		}
-		visitVariable(body, env);
+		visitVariable(fun.body(), env);
+		if (optimize) {
+			replaceObjectLiterals(fun, env);
+		}
 
-		var buffer = new InstrBuffer();
-		visit(body, env, buffer, dict);
-		buffer.emit(CONST).emit(encodeDictObject(UNDEFINED, dict));
-		buffer.emit(RET);
+		var buffer = new InstrBuffer(optimize, foldOperators);
+		buffer.line(fun.lineNumber());
+		visit(fun.body(), env, buffer, dict);
+		// the implicit return, unreachable if all the paths return
+		if (!buffer.optimize || !alwaysReturns(fun.body(), env, buffer, dict)) {
+			buffer.emit(CONST).emit(encodeDictObject(UNDEFINED, dict));
+			buffer.emit(RET);
+		}
 
 		var instrs = buffer.toInstrs();
 		Instructions.dump(instrs, dict);
 
-		var code = new Code(instrs, parameters.size() + 1 /* this */, env.length());
-		var function = JSObject.newFunction(name, JSObject.NO_INVOKER_MH);
-		function.register("__code__", code);
+		// the code keeps the function source, so it can be compiled to bytecode if it becomes hot (see TierUp)
+		var code = new Code(instrs, fun.parameters().size() + 1 /* this */, env.length(), buffer.toLineTable(), fun, buffer.foldsOperators);
+		var function = JSObject.newFunction(fun.name(), JSObject.NO_INVOKER_MH);
+		code.attachTo(function);
 		return function;
 	}
 
@@ -106,7 +190,8 @@ final class InstrRewriter {
 				}
 			}
 			case VarAssignment(String name, _, boolean declaration, _) -> {
-				if (declaration) {
+				// a variable can be declared several times, it still uses only one slot
+				if (declaration && env.lookupOrDefault(name, null) == null) {
 					env.register(name, env.length());
 				}
 			}
@@ -121,12 +206,185 @@ final class InstrRewriter {
 		};
 	}
 
+	// the value in the environment of a local variable replaced by the local variables of its fields
+	private static final Object SCALAR_REPLACED = new Object();
+
+	// the local variable of a field of a local variable replaced by its fields,
+	// a name with a dot is never the name of a variable of the script
+	private static String fieldVariable(String name, String field) {
+		return name + '.' + field;
+	}
+
+	// escape analysis, a local variable initialized with an object literal by a statement of the body
+	// does not escape if it's not used before the statement, it's never assigned again and
+	// it's only used as the receiver of a field access or of an assignment of one of its fields,
+	// then there is no object, each field is stored in its own local variable
+	// (the slot of the variable is not used anymore)
+	private static void replaceObjectLiterals(Fun fun, JSObject env) {
+		var exprs = fun.body().exprs();
+		for (var i = 0; i < exprs.size(); i++) {
+			if (!(exprs.get(i) instanceof VarAssignment(String name, ObjectLiteral(Map<String, Expr> initMap, _), _, _))
+					|| !(env.lookupOrDefault(name, null) instanceof Integer)
+					|| name.equals("this") || fun.parameters().contains(name)) {
+				continue;
+			}
+			var index = i;
+			var fields = initMap.keySet();
+			if (initMap.values().stream().allMatch(expr -> isOnlyUsedByFields(expr, name, null))
+					&& exprs.subList(0, index).stream().allMatch(expr -> isOnlyUsedByFields(expr, name, null))
+					&& exprs.subList(index + 1, exprs.size()).stream().allMatch(expr -> isOnlyUsedByFields(expr, name, fields))) {
+				env.register(name, SCALAR_REPLACED);
+				for (var field : fields) {
+					env.register(fieldVariable(name, field), env.length());
+				}
+			}
+		}
+	}
+
+	// true if the local variable name is not assigned and only used as the receiver
+	// of a field access or of an assignment of one of the fields,
+	// if fields is null, the variable must not be used at all
+	private static boolean isOnlyUsedByFields(Expr expression, String name, Set<String> fields) {
+		return switch (expression) {
+			case FieldAccess(Identifier(String receiver, _), _, _) when receiver.equals(name) -> fields != null;
+			case FieldAssignment(Identifier(String receiver, _), String field, Expr expr, _) when receiver.equals(name) ->
+					fields != null && fields.contains(field) && isOnlyUsedByFields(expr, name, fields);
+			case Identifier(String identifier, _) -> !identifier.equals(name);
+			case VarAssignment(String variable, Expr expr, _, _) -> !variable.equals(name) && isOnlyUsedByFields(expr, name, fields);
+			case Block(List<Expr> exprs, _) -> exprs.stream().allMatch(expr -> isOnlyUsedByFields(expr, name, fields));
+			case If(Expr condition, Block trueBlock, Block falseBlock, _) ->
+					isOnlyUsedByFields(condition, name, fields)
+							&& isOnlyUsedByFields(trueBlock, name, fields)
+							&& isOnlyUsedByFields(falseBlock, name, fields);
+			case Return(Expr expr, _) -> isOnlyUsedByFields(expr, name, fields);
+			case Call(Expr qualifier, List<Expr> args, _) ->
+					isOnlyUsedByFields(qualifier, name, fields)
+							&& args.stream().allMatch(arg -> isOnlyUsedByFields(arg, name, fields));
+			case ObjectLiteral(Map<String, Expr> initMap, _) ->
+					initMap.values().stream().allMatch(expr -> isOnlyUsedByFields(expr, name, fields));
+			case FieldAccess(Expr receiver, _, _) -> isOnlyUsedByFields(receiver, name, fields);
+			case FieldAssignment(Expr receiver, _, Expr expr, _) ->
+					isOnlyUsedByFields(receiver, name, fields) && isOnlyUsedByFields(expr, name, fields);
+			case MethodCall(Expr receiver, _, List<Expr> args, _) ->
+					isOnlyUsedByFields(receiver, name, fields)
+							&& args.stream().allMatch(arg -> isOnlyUsedByFields(arg, name, fields));
+			case Literal _ -> true;
+			case Fun _ -> true;  // a function has its own local variables
+		};
+	}
+
+	// a call to an operator that is not shadowed by a local variable is compiled to an intrinsic
+	private static boolean isIntrinsicCall(Call call, JSObject env) {
+		return call.qualifier() instanceof Identifier(String name, _)
+				&& call.args().size() == 2 && INTRINSICS.containsKey(name) && env.lookupOrDefault(name, null) == null;
+	}
+
+	// the value of an expression computed at compile time or null, if the code is optimized,
+	// the value of a literal or of a call to an operator on such values if the operators are folded,
+	// the operator has the semantics of the builtin operator and is not folded if its call fails
+	// (e.g. a division by zero), the cell of the operator is created like if the call was not folded,
+	// so the code compiled without folding (see Code.unfolded()) has the same cells
+	private static Object constantValue(Expr expression, JSObject env, InstrBuffer buffer, Dictionary dict) {
+		if (!buffer.optimize) {
+			return null;
+		}
+		return switch (expression) {
+			case Literal(Object value, _) -> value;
+			case Call call when buffer.foldOperators && isIntrinsicCall(call, env) -> {
+				var left = constantValue(call.args().get(0), env, buffer, dict);
+				var right = constantValue(call.args().get(1), env, buffer, dict);
+				if (left == null || right == null) {
+					yield null;
+				}
+				var operatorName = ((Identifier) call.qualifier()).name();
+				dict.cellIndex(operatorName);
+				yield fold(operatorName, left, right);
+			}
+			default -> null;
+		};
+	}
+
+	// the result of a builtin operator (see StackInterpreter.OPERATORS) or null if the call fails
+	private static Object fold(String operatorName, Object left, Object right) {
+		if (operatorName.equals("==") || operatorName.equals("!=")) {
+			return left.equals(right) == operatorName.equals("==") ? 1 : 0;
+		}
+		if (left instanceof Integer a && right instanceof Integer b) {
+			if (b == 0 && (operatorName.equals("/") || operatorName.equals("%"))) {
+				return null;
+			}
+			return switch (operatorName) {
+				case "+" -> a + b;
+				case "-" -> a - b;
+				case "*" -> a * b;
+				case "/" -> a / b;
+				case "%" -> a % b;
+				default -> compare(operatorName, a.compareTo(b));
+			};
+		}
+		if (left instanceof String a && right instanceof String b) {
+			return switch (operatorName) {
+				case "<", "<=", ">", ">=" -> compare(operatorName, a.compareTo(b));
+				default -> null;
+			};
+		}
+		return null;
+	}
+
+	private static int compare(String operatorName, int comparison) {
+		var result = switch (operatorName) {
+			case "<" -> comparison < 0;
+			case "<=" -> comparison <= 0;
+			case ">" -> comparison > 0;
+			case ">=" -> comparison >= 0;
+			default -> throw new AssertionError(operatorName);
+		};
+		return result ? 1 : 0;
+	}
+
+	// a condition is false only if it's 0 (see JUMP_IF_FALSE)
+	private static boolean isFalse(Object constant) {
+		return constant instanceof Integer value && value == 0;
+	}
+
+	// true if all the paths of the expression end with a RET, so the code that follows is unreachable,
+	// if the condition of an if is a constant, only the branch taken is compiled
+	private static boolean alwaysReturns(Expr expression, JSObject env, InstrBuffer buffer, Dictionary dict) {
+		return switch (expression) {
+			case Return _ -> true;
+			case Block(List<Expr> exprs, _) -> exprs.stream().anyMatch(expr -> alwaysReturns(expr, env, buffer, dict));
+			case If(Expr condition, Block trueBlock, Block falseBlock, _) -> {
+				var constant = constantValue(condition, env, buffer, dict);
+				if (constant != null) {
+					yield alwaysReturns(isFalse(constant) ? falseBlock : trueBlock, env, buffer, dict);
+				}
+				yield alwaysReturns(trueBlock, env, buffer, dict) && alwaysReturns(falseBlock, env, buffer, dict);
+			}
+			default -> false;
+		};
+	}
+
 	private static void visit(Expr expression, JSObject env, InstrBuffer buffer, Dictionary dict) {
+		// the instructions are attributed to the line of the innermost expression
+		var enclosingLine = buffer.line(expression.lineNumber());
+		visitExpr(expression, env, buffer, dict);
+		buffer.line(enclosingLine);
+	}
+
+	private static void visitExpr(Expr expression, JSObject env, InstrBuffer buffer, Dictionary dict) {
 		switch (expression) {
 			case Block(List<Expr> exprs, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO Block");
 				// for each expression of the block
         for (var expr : exprs) {
+					// a constant that is not used has no effect,
+					// if it's a folded call, the code is only valid with the builtin operators
+					if (!(expr instanceof Statement) && constantValue(expr, env, buffer, dict) != null) {
+						if (expr instanceof Call) {
+							buffer.foldsOperators = true;
+						}
+						continue;
+					}
 					// visit the expression
           visit(expr, env, buffer, dict);
 					// if the expression is not a statement (the value still on stack)
@@ -134,12 +392,16 @@ final class InstrRewriter {
 						  // ask to remove the top of the stack
 						   buffer.emit(POP);
 					}
+					// the expressions after a return are unreachable
+					if (buffer.optimize && alwaysReturns(expr, env, buffer, dict)) {
+						break;
+					}
 				}
 			}
 			case Literal(Object literalValue, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO Literal");
-				// test if the literal value is a positive integers
-				if (literalValue instanceof Integer value && value >= 0) {
+				// test if the literal value is an integer that fits in a small int
+				if (literalValue instanceof Integer value && fitsSmallInt(value)) {
 				// emit a small int
 				  buffer.emit(CONST).emit(encodeSmallInt(value));
 				} else {
@@ -147,6 +409,24 @@ final class InstrRewriter {
 				  buffer.emit(CONST).emit(encodeDictObject(literalValue, dict));
 				}
 			}
+			case Call call when constantValue(call, env, buffer, dict) instanceof Object constant -> {
+				// the call is folded, so the code is only valid with the builtin operators
+				buffer.foldsOperators = true;
+				visitExpr(new Literal(constant, call.lineNumber()), env, buffer, dict);
+			}
+			case Call call when isIntrinsicCall(call, env) -> {
+				var args = call.args();
+				// visit the two arguments
+				for (var arg : args) {
+					visit(arg, env, buffer, dict);
+				}
+				// emit the intrinsic followed by its slow path,
+				// the cell of the operator is created now, an execution does not modify the dictionary
+				var operatorName = ((Identifier) call.qualifier()).name();
+				dict.cellIndex(operatorName);
+				buffer.emit(INTRINSICS.get(operatorName));
+				buffer.emit(FUNCALL).emit(2);
+			}
 			case Call(Expr qualifier, List<Expr> args, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO Call");
 				// visit the qualifier
@@ -167,13 +447,21 @@ final class InstrRewriter {
 				// find if there is a local variable in the environment with the name
 				var slot = env.lookupOrDefault(name, null);
 				if (slot == null) {
-				// emit a lookup with the name
-				  buffer.emit(LOOKUP).emit(encodeAnyValue(name, dict));
+				// emit a lookup of the cell of the global name
+				  buffer.emit(LOOKUP_CELL).emit(dict.cellIndex(name));
 				} else {
 				// load the local variable with the slot
 				  buffer.emit(LOAD).emit((int) slot);
 				}
 			}
+			case VarAssignment(String name, ObjectLiteral(Map<String, Expr> initMap, _), _, _)
+					when env.lookupOrDefault(name, null) == SCALAR_REPLACED -> {
+				// store each field in its local variable, in the order of the object literal
+				initMap.forEach((field, expr) -> {
+					visit(expr, env, buffer, dict);
+					buffer.emit(STORE).emit((int) env.lookupOrDefault(fieldVariable(name, field), null));
+				});
+			}
 			case VarAssignment(String name, Expr expr, boolean declaration, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO VarAssignment");
 				// visit the expression
@@ -186,18 +474,31 @@ final class InstrRewriter {
 				// emit a store at the variable slot
 				buffer.emit(STORE).emit((int) slot);
 			}
-			case Fun(String name, List<String> parameters, boolean topLevel, Block body, int lineNumber) -> {
+			case Fun fun -> {
 //				throw new UnsupportedOperationException("TODO Fun");
 				// create a JSObject function
-				 var function = createFunction(name, parameters, body, dict);
+				 var function = createFunction(fun, dict, buffer.optimize, buffer.foldOperators);
 				// emit a const on the function
         var tmpValue = encodeDictObject(function, dict);
 				buffer.emit(CONST).emit(tmpValue);
 				// if it's a toplevel register the function in the global environment
-				if (topLevel) {
+				if (fun.toplevel()) {
 				  buffer.emit(DUP);
-				  buffer.emit(REGISTER).emit(encodeDictObject(name, dict));
+				  buffer.emit(REGISTER_CELL).emit(dict.cellIndex(fun.name()));
+				}
+			}
+			case Return(Call call, int lineNumber) when !isIntrinsicCall(call, env) -> {
+				// visit the qualifier
+				visit(call.qualifier(), env, buffer, dict);
+				// emit undefined
+				buffer.emit(CONST).emit(encodeDictObject(UNDEFINED, dict));
+				// visit all arguments
+				for (var arg : call.args()) {
+					visit(arg, env, buffer, dict);
 				}
+				// emit a tail call, followed by a RET for a native function
+				buffer.emit(TAILCALL).emit(call.args().size());
+				buffer.emit(RET);
 			}
 			case Return(Expr expr, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO Return");
@@ -206,6 +507,14 @@ final class InstrRewriter {
 				// emit a RET
         buffer.emit(RET);
 			}
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber)
+					when constantValue(condition, env, buffer, dict) instanceof Object constant -> {
+				// only the branch taken is visited, a folded call to an operator is an assumption
+				if (condition instanceof Call) {
+					buffer.foldsOperators = true;
+				}
+				visit(isFalse(constant) ? falseBlock : trueBlock, env, buffer, dict);
+			}
 			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO If");
 				// visit the condition
@@ -214,6 +523,12 @@ final class InstrRewriter {
 				var falsePlaceHolder = buffer.emit(JUMP_IF_FALSE).placeholder();
 				// visit the true block
 				visit(trueBlock, env, buffer, dict);
+				// no goto if the true block always returns
+				if (buffer.optimize && alwaysReturns(trueBlock, env, buffer, dict)) {
+					buffer.patch(falsePlaceHolder, buffer.label());
+					visit(falseBlock, env, buffer, dict);
+					return;
+				}
 				// emit a goto with another placeholder
 				var endPlaceHolder = buffer.emit(GOTO).placeholder();
 				// patch the first placeholder
@@ -225,18 +540,26 @@ final class InstrRewriter {
 			}
 			case ObjectLiteral(Map<String, Expr> initMap, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO ObjectLiteral");
-				// create a JSObject class
-				var clazz = JSObject.newObject(null);
+				// find the class of the fields, shared with the objects that have the same fields
+				var clazz = dict.classOf(List.copyOf(initMap.keySet()));
 				// loop over all the field initializations
 				initMap.forEach((fieldName, expr) -> {
-				//  register the field name with the right slot
-				  clazz.register(fieldName, clazz.length());
 				//   visit the initialization expression
 				  visit(expr, env, buffer, dict);
 				});
 				// emit a NEW with the class
 				buffer.emit(NEW).emit(encodeDictObject(clazz, dict));
 			}
+			case FieldAccess(Identifier(String receiver, _), String name, _)
+					when env.lookupOrDefault(receiver, null) == SCALAR_REPLACED -> {
+				// load the local variable of the field, undefined if the object literal has no such field
+				var slot = env.lookupOrDefault(fieldVariable(receiver, name), null);
+				if (slot == null) {
+					buffer.emit(CONST).emit(encodeDictObject(UNDEFINED, dict));
+				} else {
+					buffer.emit(LOAD).emit((int) slot);
+				}
+			}
 			case FieldAccess(Expr receiver, String name, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO FieldAccess");
 				// visit the receiver
@@ -244,6 +567,12 @@ final class InstrRewriter {
 				// emit a GET with the field name
         buffer.emit(GET).emit(encodeDictObject(name, dict));
 			}
+			case FieldAssignment(Identifier(String receiver, _), String name, Expr expr, _)
+					when env.lookupOrDefault(receiver, null) == SCALAR_REPLACED -> {
+				// visit the expression and store it in the local variable of the field
+				visit(expr, env, buffer, dict);
+				buffer.emit(STORE).emit((int) env.lookupOrDefault(fieldVariable(receiver, name), null));
+			}
 			case FieldAssignment(Expr receiver, String name, Expr expr, int lineNumber) -> {
 //				throw new UnsupportedOperationException("TODO FieldAssignment");
 				// visit the receiver
@@ -1,5 +1,9 @@
 package fr.umlv.smalljs.stackinterp;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 interface Instructions {
 	int CONST = 1; // CONST tag_value (smallint or dictionary_index)
 	int LOOKUP = 2; // LOOKUP dictionary_index (String global_name)
@@ -17,37 +21,121 @@ interface Instructions {
 	int GET = 14; // GET dictionary_index (String field_name)
 	int PUT = 15; // PUT dictionary_index (String field_name)
 
+	// quickened instructions, a GET/PUT is rewritten in place to its cached form
+	// once the field slot is resolved, the operand stays the same
+	int GET_CACHED = 16; // GET_CACHED dictionary_index (String field_name)
+	int PUT_CACHED = 17; // PUT_CACHED dictionary_index (String field_name)
+
 	int PRINT = 20;
 
+	// intrinsic operators, each one is followed by the FUNCALL 2 of its slow path,
+	// the fast path computes the result on the small ints and skips the FUNCALL 2,
+	// the slow path inserts the global operator and undefined below the two arguments
+	// and executes the FUNCALL 2
+	int ADD = 21;
+	int SUB = 22;
+	int MUL = 23;
+	int DIV = 24;
+	int MOD = 25;
+	int EQ = 26;
+	int NE = 27;
+	int LT = 28;
+	int LE = 29;
+	int GT = 30;
+	int GE = 31;
+
+	// superinstructions generated by the peephole optimizer, each one is the fusion of two instructions
+	// and takes the operands of the first instruction followed by the operands of the second one
+	int LOAD_LOAD = 32; // LOAD_LOAD slot_index slot_index
+	int LOAD_CONST = 33; // LOAD_CONST slot_index tag_value
+	int CONST_STORE = 34; // CONST_STORE tag_value slot_index
+	int LOAD_GET = 35; // LOAD_GET slot_index dictionary_index (String field_name)
+	int CONST_RET = 36; // CONST_RET tag_value
+
+	// access to a global variable through a cell, a cell index is resolved by the Dictionary at compile time,
+	// the cells contain tag values (never a reference), the cells and the global environment are kept in sync
+	int LOOKUP_CELL = 37; // LOOKUP_CELL cell_index
+	int REGISTER_CELL = 38; // REGISTER_CELL cell_index
+
+	// a call in tail position, always followed by a RET, if the function is not a native function,
+	// the frame of the callee replaces the current frame and the RET is not executed
+	int TAILCALL = 39; // TAILCALL argument_count
+
+	// the name of the instructions indexed by opcode, null if there is no instruction with that opcode
+	List<String> NAMES = Collections.unmodifiableList(Arrays.asList(null, "CONST", "LOOKUP", "REGISTER", "LOAD", "STORE", "DUP", "POP", "SWAP",
+			"FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", "GET_CACHED", "PUT_CACHED", null, null, "PRINT",
+			"ADD", "SUB", "MUL", "DIV", "MOD", "EQ", "NE", "LT", "LE", "GT", "GE",
+			"LOAD_LOAD", "LOAD_CONST", "CONST_STORE", "LOAD_GET", "CONST_RET", "LOOKUP_CELL", "REGISTER_CELL",
+			"TAILCALL"));
+
+	// size of an instruction (opcode and operands) or 0 if the instruction is unknown
+	static int sizeOrZero(int instr) {
+		return switch (instr) {
+			case DUP, POP, SWAP, RET, PRINT, ADD, SUB, MUL, DIV, MOD, EQ, NE, LT, LE, GT, GE -> 1;
+			case CONST, LOOKUP, REGISTER, LOAD, STORE, FUNCALL, GOTO, JUMP_IF_FALSE, NEW, GET, PUT, GET_CACHED, PUT_CACHED,
+					CONST_RET, LOOKUP_CELL, REGISTER_CELL, TAILCALL -> 2;
+			case LOAD_LOAD, LOAD_CONST, CONST_STORE, LOAD_GET -> 3;
+			default -> 0;
+		};
+	}
+
+	// size of an instruction (opcode and operands)
+	static int size(int instr) {
+		var size = sizeOrZero(instr);
+		if (size == 0) {
+			throw new AssertionError("unknown instr " + instr);
+		}
+		return size;
+	}
+
+	private static Object constant(int operand, Dictionary dict) {
+		return TagValues.isSmallInt(operand) ? TagValues.decodeSmallInt(operand) : TagValues.decodeDictObject(operand, dict);
+	}
+
 	static void dump(int[] instrs, Dictionary dict) {
-		var strings = new String[] { null, "CONST", "LOOKUP", "REGISTER", "LOAD", "STORE", "DUP", "POP", "SWAP",
-				"FUNCALL", "RET", "GOTO", "JUMP_IF_FALSE", "NEW", "GET", "PUT", null, null, null, null, "PRINT" };
 		for (var pc = 0; pc < instrs.length;) {
 			System.err.print(pc + " ");
 			var instr = instrs[pc++];
 			switch (instr) {
 				// no-arg instr
-				case DUP, POP, SWAP, RET, PRINT -> {
-					System.err.println(strings[instr]);
+				case DUP, POP, SWAP, RET, PRINT, ADD, SUB, MUL, DIV, MOD, EQ, NE, LT, LE, GT, GE -> {
+					System.err.println(NAMES.get(instr));
 				}
 				// int arg instr
-				case LOAD, STORE, GOTO, JUMP_IF_FALSE, FUNCALL -> {
+				case LOAD, STORE, GOTO, JUMP_IF_FALSE, FUNCALL, TAILCALL -> {
 					var operand = instrs[pc++];
-					System.err.println(strings[instr] + " " + operand);
+					System.err.println(NAMES.get(instr) + " " + operand);
 				}
 				// dictionary constant arg instr
-				case LOOKUP, REGISTER, NEW, GET, PUT -> {
+				case LOOKUP, REGISTER, NEW, GET, PUT, GET_CACHED, PUT_CACHED -> {
 					var operand = instrs[pc++];
-					System.err.println(strings[instr] + " " + TagValues.decodeDictObject(operand, dict));
+					System.err.println(NAMES.get(instr) + " " + TagValues.decodeDictObject(operand, dict));
+				}
+				// cell arg instr
+				case LOOKUP_CELL, REGISTER_CELL -> {
+					var operand = instrs[pc++];
+					System.err.println(NAMES.get(instr) + " " + operand + " (" + dict.cellName(operand) + ")");
 				}
 				// int or dictionary arg instr
-				case CONST -> {
+				case CONST, CONST_RET -> {
 					var operand = instrs[pc++];
-					if (TagValues.isSmallInt(operand)) {
-						System.err.println(strings[instr] + " " + TagValues.decodeSmallInt(operand));
-					} else {
-						System.err.println(strings[instr] + " " + TagValues.decodeDictObject(operand, dict));
-					}
+					System.err.println(NAMES.get(instr) + " " + constant(operand, dict));
+				}
+				// superinstructions
+				case LOAD_LOAD -> {
+					var operand1 = instrs[pc++];
+					var operand2 = instrs[pc++];
+					System.err.println(NAMES.get(instr) + " " + operand1 + " " + operand2);
+				}
+				case LOAD_CONST, LOAD_GET -> {
+					var operand1 = instrs[pc++];
+					var operand2 = instrs[pc++];
+					System.err.println(NAMES.get(instr) + " " + operand1 + " " + constant(operand2, dict));
+				}
+				case CONST_STORE -> {
+					var operand1 = instrs[pc++];
+					var operand2 = instrs[pc++];
+					System.err.println(NAMES.get(instr) + " " + constant(operand1, dict) + " " + operand2);
 				}
 				default -> throw new AssertionError("unknown instr " + instr);
 			}
@@ -0,0 +1,104 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.io.ByteArrayOutputStream;
+
+// Table that maps the index of an instruction (pc) to a line number of the source.
+//
+// The table is a sequence of entries, one each time the line changes, sorted by pc,
+// each entry is the difference with the previous entry (starting at pc 0 and line 0),
+//   pc_delta line_delta
+// the pc delta is an unsigned varint and the line delta a zigzag encoded varint
+// (7 bits per byte, the high bit is set if there are more bytes), so an entry is usually 2 bytes.
+//
+// The table is only decoded when a failure is reported or a profile is printed,
+// so the interpreter never reads it.
+final class LineTable {
+	private LineTable() {
+		throw new AssertionError();
+	}
+
+	static final byte[] EMPTY = new byte[0];
+
+	// builder of a table, the entries must be added in pc order
+	static final class Builder {
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private int lastPc;
+		private int lastLine;
+		private int pendingPc = -1;  // the entry not yet written, the next one may replace it
+		private int pendingLine;
+
+		// an entry with the same pc as the previous one replaces it
+		void add(int pc, int line) {
+			if (pc != pendingPc) {
+				flush();
+				pendingPc = pc;
+			}
+			pendingLine = line;
+		}
+
+		private void flush() {
+			if (pendingPc == -1 || pendingLine == lastLine) {
+				return;
+			}
+			writeVarint(output, pendingPc - lastPc);
+			writeVarint(output, (pendingLine - lastLine) << 1 ^ (pendingLine - lastLine) >> 31);
+			lastPc = pendingPc;
+			lastLine = pendingLine;
+		}
+
+		byte[] toLineTable() {
+			flush();
+			pendingPc = -1;
+			return output.size() == 0 ? EMPTY : output.toByteArray();
+		}
+	}
+
+	private static void writeVarint(ByteArrayOutputStream output, int value) {
+		while ((value & ~0x7F) != 0) {
+			output.write(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+	// the line number of the instruction at pc or -1 if unknown,
+	// pc can be the index of an operand of the instruction
+	static int lineNumber(byte[] table, int pc) {
+		var index = 0;
+		var entryPc = 0;
+		var line = -1;
+		var entryLine = 0;
+		while (index < table.length) {
+			// decode pc delta
+			var value = 0;
+			var shift = 0;
+			int b;
+			do {
+				if (index == table.length) {
+					return line;
+				}
+				b = table[index++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			entryPc += value;
+			if (entryPc > pc) {
+				return line;
+			}
+			// decode line delta
+			value = 0;
+			shift = 0;
+			do {
+				if (index == table.length) {
+					return line;
+				}
+				b = table[index++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			entryLine += (value >>> 1) ^ -(value & 1);
+			line = entryLine;
+		}
+		return line;
+	}
+}
@@ -0,0 +1,119 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+// The memory of a heap, ints indexed by their address, the address of an object
+// is encoded in a reference (see TagValues.encodeReference) so there are at most 2^30 ints.
+//
+// The memory is either a Java array, or a native memory segment outside of the Java heap
+// (see ExecutionConfig.Storage), the segment is not scanned by the JVM garbage collector
+// and is freed as soon as the execution ends (when the memory is closed).
+sealed interface Memory extends AutoCloseable {
+	// the maximum number of ints, an address must fit in a reference
+	int MAX_SIZE = 1 << 30;
+
+	int size();
+
+	int get(int address);
+
+	void set(int address, int value);
+
+	// copy length ints, the two ranges may overlap (like System.arraycopy)
+	void copy(int from, int to, int length);
+
+	// copy the whole memory as big endian ints in target starting at offset (in bytes),
+	// used to write a snapshot of the heap (see HeapSnapshot)
+	void copyTo(MemorySegment target, long offset);
+
+	// free the memory, the memory can not be used after
+	@Override
+	void close();
+
+	static Memory create(ExecutionConfig.Storage storage, long size) {
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("heap too large " + size);
+		}
+		return switch (storage) {
+			case JAVA_HEAP -> new ArrayMemory(new int[(int) size]);
+			case OFF_HEAP -> new SegmentMemory((int) size);
+		};
+	}
+
+	record ArrayMemory(int[] array) implements Memory {
+		@Override
+		public int size() {
+			return array.length;
+		}
+
+		@Override
+		public int get(int address) {
+			return array[address];
+		}
+
+		@Override
+		public void set(int address, int value) {
+			array[address] = value;
+		}
+
+		@Override
+		public void copy(int from, int to, int length) {
+			System.arraycopy(array, from, array, to, length);
+		}
+
+		@Override
+		public void copyTo(MemorySegment target, long offset) {
+			MemorySegment.copy(array, 0, target, HeapSnapshot.INT, offset, array.length);
+		}
+
+		@Override
+		public void close() {
+			// the array is reclaimed by the JVM garbage collector
+		}
+	}
+
+	// the segment is allocated in an arena owned by the thread of the execution
+	final class SegmentMemory implements Memory {
+		private final Arena arena;
+		private final MemorySegment segment;
+		private final int size;
+
+		SegmentMemory(int size) {
+			this.arena = Arena.ofConfined();
+			this.segment = arena.allocate(size * (long) Integer.BYTES, Integer.BYTES);
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public int get(int address) {
+			return segment.getAtIndex(ValueLayout.JAVA_INT, address);
+		}
+
+		@Override
+		public void set(int address, int value) {
+			segment.setAtIndex(ValueLayout.JAVA_INT, address, value);
+		}
+
+		@Override
+		public void copy(int from, int to, int length) {
+			MemorySegment.copy(segment, ValueLayout.JAVA_INT, from * (long) Integer.BYTES,
+					segment, ValueLayout.JAVA_INT, to * (long) Integer.BYTES, length);
+		}
+
+		@Override
+		public void copyTo(MemorySegment target, long offset) {
+			MemorySegment.copy(segment, ValueLayout.JAVA_INT, 0, target, HeapSnapshot.INT, offset, size);
+		}
+
+		@Override
+		public void close() {
+			arena.close();
+		}
+	}
+}
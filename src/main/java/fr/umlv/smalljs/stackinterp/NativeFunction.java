@@ -0,0 +1,51 @@
+package fr.umlv.smalljs.stackinterp;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// A native function called by the stack interpreter with the tagged values of the receiver
+// and of the arguments, so the arguments are neither boxed nor copied out of the heap.
+// The calls are specialized for 0 to MAX_ARITY arguments, with more arguments, the function
+// is called through its JSObject (JSObject.invoke()) with the decoded arguments.
+//
+// The heap view is read-only, a native function can not allocate, so the result
+// is a small int or a constant (a tagged value of the dictionary, like undefined).
+interface NativeFunction {
+	int MAX_ARITY = 3;
+
+	int call0(HeapView heap, int receiver);
+	int call1(HeapView heap, int receiver, int arg0);
+	int call2(HeapView heap, int receiver, int arg0, int arg1);
+	int call3(HeapView heap, int receiver, int arg0, int arg1, int arg2);
+
+	// the native function is the only attribute of the function, like the Code (see Code.of())
+	final class Layouts {
+		private static final String NATIVE_KEY = "__native__";
+		private static final Object NATIVE_LAYOUT;
+		static {
+			var function = JSObject.newFunction("layout", JSObject.NO_INVOKER_MH);
+			function.register(NATIVE_KEY, new Object());
+			NATIVE_LAYOUT = function.layout();
+		}
+
+		private Layouts() {
+			throw new AssertionError();
+		}
+	}
+
+	// create a function that can be called by any interpreter using the invoker,
+	// and by the stack interpreter using the native function
+	static JSObject newFunction(String name, JSObject.Invoker invoker, NativeFunction nativeFunction) {
+		var function = JSObject.newFunction(name, invoker);
+		function.register(Layouts.NATIVE_KEY, nativeFunction);
+		return function;
+	}
+
+	static boolean isNative(JSObject function) {
+		return function.layout() == Layouts.NATIVE_LAYOUT;
+	}
+
+	// the native function of a function or null
+	static NativeFunction of(JSObject function) {
+		return isNative(function) ? (NativeFunction) function.fastAccess(0) : null;
+	}
+}
@@ -0,0 +1,106 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+// The table of the objects of the heap seen from Java through a lazy view (see Heap.view()),
+// each view reads the reference of its object from the table, the references of the table
+// are roots of the garbage collector (updated when an object moves) as long as the view is reachable.
+//
+// The views are weakly referenced, when a view is reclaimed by the Java GC, its entry
+// is freed by expunge(). A free entry stores the index of the next free entry as a small int,
+// so the garbage collector can scan the table like the stack.
+//
+// When the heap is closed, the fields of the views that are still reachable are copied
+// in the table (see materialize()), so a view can still be read after the execution.
+final class ObjectViews {
+	private static final class ViewReference extends WeakReference<Object> {
+		private final int index;
+
+		private ViewReference(Object view, int index, ReferenceQueue<Object> queue) {
+			super(view, queue);
+			this.index = index;
+		}
+	}
+
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+	private int[] refs = new int[0];
+	private ViewReference[] views = new ViewReference[0];
+	private Object[][] values = new Object[0][];  // the decoded fields of a materialized view or null
+	private int freeList = -1;
+
+	// the references, the free entries are small ints
+	int[] refs() {
+		return refs;
+	}
+
+	// the tagged reference of an entry
+	int get(int index) {
+		return refs[index];
+	}
+
+	// add a reference, return the index of its entry
+	int add(int ref) {
+		if (freeList == -1) {
+			grow();
+		}
+		var index = freeList;
+		freeList = decodeSmallInt(refs[index]);
+		refs[index] = ref;
+		return index;
+	}
+
+	// the view of the entry, the entry is freed when the view is unreachable
+	void register(int index, Object view) {
+		views[index] = new ViewReference(view, index, queue);
+	}
+
+	// the number of entries, free or not
+	int capacity() {
+		return refs.length;
+	}
+
+	// the view of an entry or null if the entry is free or the view was reclaimed
+	Object view(int index) {
+		var reference = views[index];
+		return reference == null ? null : reference.get();
+	}
+
+	// the fields of the view of an entry once materialized or null
+	Object[] values(int index) {
+		return values[index];
+	}
+
+	// store the decoded fields of the view of an entry, the view does not read the heap anymore
+	void materialize(int index, Object[] values) {
+		this.values[index] = values;
+	}
+
+	private void grow() {
+		var length = refs.length;
+		var newLength = Math.max(16, length << 1);
+		refs = Arrays.copyOf(refs, newLength);
+		views = Arrays.copyOf(views, newLength);
+		values = Arrays.copyOf(values, newLength);
+		for (var i = newLength; --i >= length;) {
+			refs[i] = encodeSmallInt(freeList);
+			freeList = i;
+		}
+	}
+
+	// free the entries of the views reclaimed by the Java GC
+	void expunge() {
+		ViewReference reference;
+		while ((reference = (ViewReference) queue.poll()) != null) {
+			var index = reference.index;
+			views[index] = null;
+			values[index] = null;
+			refs[index] = encodeSmallInt(freeList);
+			freeList = index;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST_RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST_STORE;
+import static fr.umlv.smalljs.stackinterp.Instructions.GET;
+import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
+import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_GET;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Peephole optimizer, fuses a pair of instructions into a superinstruction
+// to save a dispatch in the interpreter.
+//
+// Two instructions are never fused if the second one is the target of a jump,
+// and the labels of the jumps are patched to the new instruction indexes,
+// the same for the instruction indexes of the line table.
+// The instructions that follow an intrinsic (its FUNCALL 2 and the next instruction)
+// are never fused because there is no superinstruction that starts with a FUNCALL.
+final class Peephole {
+	// the superinstruction of two instructions or -1
+	private static int fuse(int instr1, int instr2) {
+		return switch (instr1) {
+			case LOAD -> switch (instr2) {
+				case LOAD -> LOAD_LOAD;
+				case CONST -> LOAD_CONST;
+				case GET -> LOAD_GET;
+				default -> -1;
+			};
+			case CONST -> switch (instr2) {
+				case STORE -> CONST_STORE;
+				case RET -> CONST_RET;
+				default -> -1;
+			};
+			default -> -1;
+		};
+	}
+
+	// pcs are indexes of instructions (of the line table), they are replaced by their new index,
+	// the index of an instruction fused with the previous one is the index of the superinstruction
+	static int[] optimize(int[] instrs, int[] pcs) {
+		// find the jump targets
+		var targets = new BitSet();
+		for (var pc = 0; pc < instrs.length; pc += Instructions.size(instrs[pc])) {
+			if (instrs[pc] == GOTO || instrs[pc] == JUMP_IF_FALSE) {
+				targets.set(instrs[pc + 1]);
+			}
+		}
+
+		// fuse the instructions and record the new index of each instruction
+		var newInstrs = new int[instrs.length];
+		var newPcs = new int[instrs.length + 1];
+		var newPc = 0;
+		for (var pc = 0; pc < instrs.length;) {
+			newPcs[pc] = newPc;
+			var instr = instrs[pc];
+			var size = Instructions.size(instr);
+			var next = pc + size;
+			if (next < instrs.length && !targets.get(next)) {
+				var fused = fuse(instr, instrs[next]);
+				if (fused != -1) {
+					var nextSize = Instructions.size(instrs[next]);
+					newPcs[next] = newPc;
+					newInstrs[newPc++] = fused;
+					System.arraycopy(instrs, pc + 1, newInstrs, newPc, size - 1);
+					newPc += size - 1;
+					System.arraycopy(instrs, next + 1, newInstrs, newPc, nextSize - 1);
+					newPc += nextSize - 1;
+					pc = next + nextSize;
+					continue;
+				}
+			}
+			System.arraycopy(instrs, pc, newInstrs, newPc, size);
+			newPc += size;
+			pc = next;
+		}
+		newPcs[instrs.length] = newPc;
+
+		// patch the pcs and the labels
+		for (var i = 0; i < pcs.length; i++) {
+			pcs[i] = newPcs[pcs[i]];
+		}
+		for (var pc = 0; pc < newPc; pc += Instructions.size(newInstrs[pc])) {
+			if (newInstrs[pc] == GOTO || newInstrs[pc] == JUMP_IF_FALSE) {
+				newInstrs[pc + 1] = newPcs[newInstrs[pc + 1]];
+			}
+		}
+		return Arrays.copyOf(newInstrs, newPc);
+	}
+}
@@ -1,21 +1,29 @@
 package fr.umlv.smalljs.stackinterp;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.TagValues.FALSE;
 import static fr.umlv.smalljs.stackinterp.TagValues.OBJECT_HEADER_SIZE;
+import static fr.umlv.smalljs.stackinterp.TagValues.TRUE;
 import static fr.umlv.smalljs.stackinterp.TagValues.decodeAnyValue;
 import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.decodeReference;
-import static fr.umlv.smalljs.stackinterp.TagValues.encodeAnyValue;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeSmallInt;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeReference;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.fitsSmallInt;
+import static fr.umlv.smalljs.stackinterp.TagValues.isDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.isReference;
 import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import fr.umlv.smalljs.ast.Script;
@@ -43,7 +51,7 @@ public final class StackInterpreter {
 		return stack[bp + offset];
 	}
 
-	private static void dumpStack(String message, int[] stack, int sp, int bp, Dictionary dict, int[] heap) {
+	private static void dumpStack(String message, int[] stack, int sp, int bp, Dictionary dict, Heap heap) {
 		System.err.println(message);
 		for (var i = sp - 1; i >= 0; i = i - 1) {
 			var value = stack[i];
@@ -56,42 +64,257 @@ public final class StackInterpreter {
 		System.err.println();
 	}
 
-	private static void dumpHeap(String message, int[] heap, int hp, Dictionary dict) {
+	private static void dumpHeap(String message, Heap heap, Dictionary dict) {
 		System.err.println(message);
-		for (var i = 0; i < hp; i++) {
-			var value = heap[i];
+		heap.forEachObject(ref -> {
+			var value = encodeReference(ref);
 			try {
-				System.err.println(i + ": " + value + " " + decodeAnyValue(value, dict, heap));
+				System.err.println(ref + ": " + decodeAnyValue(value, dict, heap));
 			} catch (IndexOutOfBoundsException | ClassCastException e) {
-				System.err.println(i + ": " + value + " (can't decode)");
+				System.err.println(ref + ": (can't decode)");
 			}
-		}
+		});
 		System.err.println();
 	}
 
 
-	private static final int GC_OFFSET = 1;
-	private static final int GC_MARK = -1;
-	private static final int GC_EMPTY = -2;
-
 	private static final int BP_OFFSET = 0;
 	private static final int PC_OFFSET = 1;
 	private static final int FUN_OFFSET = 2;
 	private static final int ACTIVATION_SIZE = 3;
 
+	// the size of the operand stack of a frame is computed by the verifier,
+	// the stack is checked once per call, no instruction needs to check the stack
+	private static int frameSize(Code code, Dictionary dict) {
+		return code.slotCount() + ACTIVATION_SIZE + code.maxStack(dict);
+	}
+
+	// grow the stack (the indexes on stack are absolute, so the saved bp are still valid)
+	private static int[] growStack(int[] stack, int minSize, int maxSize) {
+		if (minSize > maxSize) {
+			throw new Failure("stack overflow");
+		}
+		var newSize = Math.max(minSize, (int) Math.min(2L * stack.length, maxSize));
+		return Arrays.copyOf(stack, newSize);
+	}
+
+	// find the address of the field named by the operand at pc of the object at ref,
+	// and if the field exists, fill the inline cache and rewrite the instruction to its quickened form
+	// (quickenedOpcode is -1 for a superinstruction, it always uses the inline cache),
+	// the cache is written before the opcode so a quickened instruction always sees a filled cache,
+	// return -1 if the field does not exist
+	// (the object may have been relocated, in that case its header is not a class and the cache always misses)
+	private static int resolveField(CodeState state, int pc, int ref, int quickenedOpcode, Dictionary dict, Heap heap) {
+		ref = heap.resolve(ref);
+		var vClass = heap.get(ref);
+		var instrs = state.instrs;
+		var fieldName = (String) decodeDictObject(instrs[pc], dict);
+		var clazz = (JSObject) decodeDictObject(vClass, dict);
+		var slot = clazz.lookupOrDefault(fieldName, null);
+		if (slot == null) {
+			return -1;
+		}
+		var fieldIndex = (int) slot;
+		state.inlineCaches[pc] = ((long) vClass << 32) | fieldIndex;
+		if (quickenedOpcode != -1) {
+			instrs[pc - 1] = quickenedOpcode;
+		}
+		return ref + OBJECT_HEADER_SIZE + fieldIndex;
+	}
+
+	// store the value in the field named by the operand at pc of the receiver, the slow path of PUT,
+	// the receiver and the value were just popped, they are still in stack[sp] and stack[sp + 1],
+	// so they are roots if a collection is needed.
+	// If the field does not exist, the object gets the class with the field added (see Dictionary.transition()),
+	// the object grows in place if it can, otherwise it's relocated (see Heap.relocate()),
+	// the inline cache stores the transition, the new class as a negative value (~vNewClass)
+	private static void putField(CodeState state, int pc, int sp, int[] stack, int[] cells, Dictionary dict, Heap heap) {
+		var ref = heap.resolve(decodeReference(stack[sp]));
+		var vClass = heap.get(ref);
+		var cache = state.inlineCaches[pc];
+		int vNewClass;
+		if ((int) (cache >>> 32) == vClass) {
+			if ((int) cache >= 0) {  // a relocated object with a cached class
+				heap.putField(ref, (int) cache, stack[sp + 1]);
+				return;
+			}
+			vNewClass = ~(int) cache;
+		} else {
+			var address = resolveField(state, pc, ref, Instructions.PUT_CACHED, dict, heap);
+			if (address != -1) {
+				heap.putField(ref, address - ref - OBJECT_HEADER_SIZE, stack[sp + 1]);
+				return;
+			}
+			// a new field
+			var clazz = (JSObject) decodeDictObject(vClass, dict);
+			var fieldName = (String) decodeDictObject(state.instrs[pc], dict);
+			vNewClass = encodeDictObject(dict.transition(clazz, fieldName), dict);
+			state.inlineCaches[pc] = ((long) vClass << 32) | (~vNewClass & 0xFFFF_FFFFL);
+			state.instrs[pc - 1] = Instructions.PUT_CACHED;
+		}
+
+		// the new field is the last slot of the new class
+		var size = heap.objectSize(vClass);
+		var newSize = heap.objectSize(vNewClass);
+		var fieldIndex = ((JSObject) decodeDictObject(vNewClass, dict)).length() - 1;
+		if (newSize != size && !heap.extend(ref, size, newSize)) {
+			var newRef = heap.allocate(vNewClass, newSize);
+			if (newRef == -1) {
+				heap.collect(stack, sp + 2, cells, newSize);
+				// the receiver may have moved
+				ref = heap.resolve(decodeReference(stack[sp]));
+				newRef = heap.allocate(vNewClass, newSize);
+				if (newRef == -1) {
+					throw new Failure("out of memory");
+				}
+			}
+			heap.relocate(ref, newRef, size);
+			ref = newRef;
+		}
+		// the new slot is initialized so the write barrier never sees an uninitialized value
+		heap.set(ref, vNewClass);
+		heap.set(ref + OBJECT_HEADER_SIZE + fieldIndex, heap.undefined());
+		heap.putField(ref, fieldIndex, stack[sp + 1]);
+	}
+
+	// the builtin operators and their names, indexed by intrinsic opcode - Instructions.ADD,
+	// the fast path of an intrinsic is only valid if the global environment still contains them
+	static final String[] OPERATOR_NAMES = { "+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=" };
+	private static final Set<String> OPERATOR_NAME_SET = Set.of(OPERATOR_NAMES);
+	@SuppressWarnings("unchecked")
+	private static final JSObject[] OPERATORS = {
+			JSObject.newFunction("+", (_, args) -> (Integer) args[0] + (Integer) args[1]),
+			JSObject.newFunction("-", (_, args) -> (Integer) args[0] - (Integer) args[1]),
+			JSObject.newFunction("*", (_, args) -> (Integer) args[0] * (Integer) args[1]),
+			JSObject.newFunction("/", (_, args) -> (Integer) args[0] / (Integer) args[1]),
+			JSObject.newFunction("%", (_, args) -> (Integer) args[0] % (Integer) args[1]),
+			JSObject.newFunction("==", (_, args) -> args[0].equals(args[1]) ? 1 : 0),
+			JSObject.newFunction("!=", (_, args) -> !args[0].equals(args[1]) ? 1 : 0),
+			JSObject.newFunction("<", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0) ? 1 : 0),
+			JSObject.newFunction("<=", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0) ? 1 : 0),
+			JSObject.newFunction(">", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0) ? 1 : 0),
+			JSObject.newFunction(">=", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0) ? 1 : 0),
+	};
+
+	private static boolean hasBuiltinOperators(JSObject globalEnv) {
+		for (var i = 0; i < OPERATORS.length; i++) {
+			if (globalEnv.lookupOrDefault(OPERATOR_NAMES[i], null) != OPERATORS[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the state of a code for an execution, if the operators are not the builtin ones,
+	// a code that folds the operators is replaced by the code compiled without folding
+	private static CodeState newState(Code code, boolean builtinOperators, Dictionary dict) {
+		return new CodeState(builtinOperators ? code : code.unfolded(dict));
+	}
+
+	// the operators are not the builtin ones anymore, the next calls to a code that folds
+	// the operators use a new state with the code compiled without folding,
+	// the frames that are executing such code are not changed
+	private static void invalidateFoldedCodes(IdentityHashMap<Code, CodeState> states) {
+		for (var state : states.values()) {
+			for (var i = 0; i < state.callTargets.length; i++) {
+				var target = state.callTargets[i];
+				if (target != null && target.code.foldsOperators()) {
+					state.inlineCaches[i] = CodeState.EMPTY_CACHE;
+					state.callTargets[i] = null;
+				}
+			}
+		}
+		states.values().removeIf(state -> state.code.foldsOperators());
+	}
+
+	// slow path of an intrinsic, insert the operator (its tag value) and undefined (the receiver) below
+	// the two arguments so the stack is ready for the FUNCALL 2 that follows the intrinsic,
+	// return the new stack pointer
+	private static int prepareOperatorCall(int[] stack, int sp, int operator, int undefined) {
+		stack[sp + 1] = stack[sp - 1];
+		stack[sp] = stack[sp - 2];
+		stack[sp - 1] = undefined;
+		stack[sp - 2] = operator;
+		return sp + 2;
+	}
+
+	// the value of a global cell, the cell is resolved from the global environment the first time,
+	// the value is encoded as a handle so a collection may occur (the values of the stack are the roots)
+	private static int lookupCell(int[] cells, int cell, JSObject globalEnv, Dictionary dict, Heap heap, int[] stack, int sp) {
+		var value = cells[cell];
+		if (value == 0) {
+			var name = dict.cellName(cell);
+			var global = globalEnv.lookupOrDefault(name, null);
+			if (global == null) {
+				throw new Failure("unknown identifier " + name);
+			}
+			value = cells[cell] = heap.encodeValue(global, stack, sp, cells);
+		}
+		return value;
+	}
+
+	// the value of an operator for the slow path of an intrinsic, the operator has no cell
+	// if the code was not created by the InstrRewriter, then it's resolved each time
+	private static int lookupOperator(int[] cells, int[] operatorCells, int operator, JSObject globalEnv, Dictionary dict, Heap heap, int[] stack, int sp) {
+		var cell = operatorCells[operator];
+		if (cell != -1) {
+			return lookupCell(cells, cell, globalEnv, dict, heap, stack, sp);
+		}
+		var name = OPERATOR_NAMES[operator];
+		var global = globalEnv.lookupOrDefault(name, null);
+		if (global == null) {
+			throw new Failure("unknown identifier " + name);
+		}
+		return heap.encodeValue(global, stack, sp, cells);
+	}
+
 	private static final int RECEIVER_BASE_ARG_OFFSET = -1;
 	private static final int QUALIFIER_BASE_ARG_OFFSET = -2;
 	private static final int FUNCALL_PREFIX = 2;
 
 	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv) {
-		var stack = new int[96 /* 4096 */];
-		var heap = new int[96 /* 4096 */];
-		var code = (Code) function.lookupOrDefault("__code__", null);
-		var instrs = code.instrs();
+		return execute(function, dict, globalEnv, ExecutionConfig.DEFAULT, new ExecutionStats());
+	}
+
+	// the heap is freed at the end of the execution, the views of the objects still reachable
+	// (e.g. an object returned by main) are materialized before (see Heap.close())
+	public static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, ExecutionConfig config, ExecutionStats stats) {
+		try (var heap = Heap.create(config, dict, stats)) {
+			return execute(function, dict, globalEnv, config, stats, heap);
+		}
+	}
+
+	private static Object execute(JSObject function, Dictionary dict, JSObject globalEnv, ExecutionConfig config, ExecutionStats stats, Heap heap) {
+		// true if the intrinsics can use their fast path and the codes that fold the operators are valid
+		var builtinOperators = hasBuiltinOperators(globalEnv);
+		// the state of the codes for this execution, the codes may be shared with other executions
+		var states = new IdentityHashMap<Code, CodeState>();
+		var code = Code.of(function);
+		var state = newState(code, builtinOperators, dict);
+		states.put(code, state);
+		code = state.code;
+		var stack = growStack(new int[0], Math.max(config.stackSize(), frameSize(code, dict)), config.maxStackSize());
 
 		var undefined = encodeDictObject(UNDEFINED, dict);
+		// the cells of the operators (or -1), used by the slow path of the intrinsics,
+		// the dictionary may be shared with other executions so it's not modified
+		var operatorCells = new int[OPERATOR_NAMES.length];
+		for (var i = 0; i < operatorCells.length; i++) {
+			operatorCells[i] = dict.findCell(OPERATOR_NAMES[i]);
+		}
+		// the global cells, 0 (never a valid value of a cell) means not yet resolved
+		var cells = new int[dict.cellCount()];
+		// the hot functions are compiled to JVM bytecode
+		var tierUpThreshold = config.tierUpThreshold();
+		var tierUp = new TierUp(code.fun(), globalEnv);
+		// the counters, only if the execution is profiled
+		var profile = config.profile() ? stats.profileForRecording() : null;
+		var instrs = state.instrs;
+		// the state of the code of each frame, because the state of a code is not stored in the function
+		var frames = new CodeState[16];
+		var depth = 0;
+		frames[0] = state;
 
-		var hp = 0; // heap pointer
 		var pc = 0; // instruction pointer
 		var bp = 0; // base pointer
 		var sp = bp + code.slotCount() + ACTIVATION_SIZE; // stack pointer
@@ -100,343 +323,738 @@ public final class StackInterpreter {
 		for (var i = 0; i < code.slotCount(); i++) {
 			stack[i] = undefined;
 		}
+		// initialize the activation of main, all the values on stack are tagged values
+		// so the garbage collector can scan the stack without knowing the stack frames
+		stack[code.slotCount() + BP_OFFSET] = encodeSmallInt(0);
+		stack[code.slotCount() + PC_OFFSET] = encodeSmallInt(0);
+		stack[code.slotCount() + FUN_OFFSET] = undefined;
+		// the tag value of the current function, main is not a constant so it's a handle
+		var functionTag = heap.encodeValue(function, stack, sp, cells);
+		stack[code.slotCount() + FUN_OFFSET] = functionTag;
+		if (profile != null) {
+			profile.recordInvocation(state, functionTag, dict, heap);
+		}
 
-		for (;;) {
-			switch (instrs[pc++]) {
-				case Instructions.CONST -> {
-					// get the constant from the instruction to the stack
-          var value = instrs[pc++];
-          // push(...)
-          push(stack, sp++, value);
-        }
-				case Instructions.LOOKUP -> {
-					// find the current instruction
-					int indexTagValue = instrs[pc++];
-					// decode the name from the instruction
-					String name = (String) decodeDictObject(indexTagValue, dict);
-					// lookup the name
-          var lookup_name = globalEnv.lookupOrDefault(name, null);
-          // if it does not exist throw a failure
-          if (lookup_name == null) {
-            throw new Failure("unknown identifier " + name);
-          }
-					// otherwise push as any anyValue
-          push(stack, sp++, encodeAnyValue(lookup_name, dict));
-
-					dumpStack("in lookup", stack, sp, bp, dict, heap);
-				}
-				case Instructions.REGISTER -> {
-//					throw new UnsupportedOperationException("TODO REGISTER");
-					// find the current instruction
-					int indexTagValue = instrs[pc++];
-					// decode the name from the instructions
-					String name = (String) decodeDictObject(indexTagValue, dict);
-					// pop the value from the stack and decode it
-					Object value = decodeAnyValue(pop(stack, --sp), dict, heap);
-					// register it in the global environment
-           globalEnv.register(name, value);
-				}
-				case Instructions.LOAD -> {
-//					throw new UnsupportedOperationException("TODO LOAD");
-					// get local offset
-          int offset = instrs[pc++];
-					// load value from the local slots
-					int value = load(stack, bp, offset);
-					// push it to the top of the stack
-					push(stack, sp++,  value);
-				}
-				case Instructions.STORE -> {
-					// get local offset
-					int offset = instrs[pc++];
-					// pop value from the stack
-					var value = pop(stack, --sp);
-					// store it in the local slots
-					store(stack, bp, offset, value);
-				}
-				case Instructions.DUP -> {
-					// get value on top of the stack (without remove it)
-					var value = peek(stack, sp);
-					// push it on top of the stack
-					push(stack, sp++, value);
-				}
-				case Instructions.POP -> {
-					// adjust the stack pointer
-					--sp;
-				}
-				case Instructions.SWAP -> {
-					throw new UnsupportedOperationException("TODO SWAP");
-					// pop first value from the stack
-					//var value1 = ...
-					// pop second value from the stack
-					//var value2 = ...
-					// push first value on top of the stack
-					//push(...);
-					// push second value on top of the stack
-					//push(...);
+		try {
+			for (;;) {
+				if (profile != null) {
+					profile.recordOpcode(instrs[pc]);
 				}
-				case Instructions.FUNCALL -> {
-					// DEBUG
-					dumpStack(">start funcall dump", stack, sp, bp, dict, heap);
-					// find argument count
-					var argumentCount = instrs[pc++];
-					// find baseArg
-					var baseArg = sp - argumentCount;
-					// stack[baseArg] is the first argument
-					// stack[baseArg + RECEIVER_BASE_ARG_OFFSET] is the receiver
-					// stack[baseArg + QUALIFIER_BASE_ARG_OFFSET] is the qualifier (aka the function)
-
-					// decode qualifier
-					var newFunction = (JSObject) decodeAnyValue(stack[baseArg + QUALIFIER_BASE_ARG_OFFSET], dict, heap);
-					//{ // DEBUG
-					//	var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
-					//	var args = new Object[argumentCount];
-					//	for (var i = 0; i < argumentCount; i++) {
-					//		args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
-					//	}
-					//	System.err.println("funcall " + newFunction.getName() + " with " + receiver + " " + Arrays.toString(args));
-					//}
-
-					// check if the function contains a code attribute
-					var maybeCode = newFunction.lookupOrDefault("__code__", null);
-					if (maybeCode == null) { // native call !
-					  // decode receiver
-					  var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
-					  // decode arguments
-					  var args = new Object[argumentCount];
-					  for (var i = 0; i < argumentCount; i++) {
-					  	args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
-					  }
-
-
-					   System.err.println("call native " + newFunction.name() + " with " +
-					   receiver + " " + Arrays.toString(args));
-
-					  // call native function
-					  var result = encodeAnyValue(newFunction.invoke(receiver, args), dict);
-
-					  // fixup sp (receiver and function must be dropped)
-					  sp = baseArg - FUNCALL_PREFIX;
-
-					  // push return value
-					  push(stack, sp++, result);
-					  continue;
-					}
-//					throw new UnsupportedOperationException("TODO FUNCALL");
-
-					// initialize new code
-					code = (Code) maybeCode;
+				switch (instrs[pc++]) {
+					case Instructions.CONST -> {
+						// get the constant from the instruction to the stack
+	          var value = instrs[pc++];
+	          // push(...)
+	          push(stack, sp++, value);
+	        }
+					case Instructions.LOOKUP -> {
+						// find the current instruction
+						int indexTagValue = instrs[pc++];
+						// decode the name from the instruction
+						String name = (String) decodeDictObject(indexTagValue, dict);
+						// lookup the name
+	          var lookup_name = globalEnv.lookupOrDefault(name, null);
+	          // if it does not exist throw a failure
+	          if (lookup_name == null) {
+	            throw new Failure("unknown identifier " + name);
+	          }
+						// otherwise push as any anyValue
+	          // the value is encoded before the push, the GC must not scan the slot being pushed
+	          var value = heap.encodeValue(lookup_name, stack, sp, cells);
+	          push(stack, sp++, value);
 
-					// check number of arguments
-					if (code.parameterCount() != argumentCount + 1/* this */) {
-						throw new Failure("wrong number of arguments for " + newFunction.name() + " expected "
-								+ (code.parameterCount() - 1) + " but was " + argumentCount);
+						//dumpStack("in lookup", stack, sp, bp, dict, heap);
+					}
+					case Instructions.REGISTER -> {
+	//					throw new UnsupportedOperationException("TODO REGISTER");
+						// find the current instruction
+						int indexTagValue = instrs[pc++];
+						// decode the name from the instructions
+						String name = (String) decodeDictObject(indexTagValue, dict);
+						// pop the value from the stack and decode it
+						Object value = decodeAnyValue(pop(stack, --sp), dict, heap);
+						// register it in the global environment
+	           globalEnv.register(name, value);
+						// the cell of the name (if it exists) needs to be resolved again
+						var cell = dict.findCell(name);
+						if (cell != -1) {
+							cells[cell] = 0;
+						}
+						// an operator may have been redefined
+						if (OPERATOR_NAME_SET.contains(name)) {
+							var builtin = hasBuiltinOperators(globalEnv);
+							if (builtinOperators && !builtin) {
+								invalidateFoldedCodes(states);
+							}
+							builtinOperators = builtin;
+						}
+					}
+					case Instructions.LOOKUP_CELL -> {
+						// get the cell index from the instructions
+						var cell = instrs[pc++];
+						// push the value of the cell
+						var value = lookupCell(cells, cell, globalEnv, dict, heap, stack, sp);
+						push(stack, sp++, value);
+					}
+					case Instructions.REGISTER_CELL -> {
+						// get the cell index from the instructions
+						var cell = instrs[pc++];
+						var name = dict.cellName(cell);
+						// pop the value from the stack and decode it
+						var tagValue = pop(stack, --sp);
+						var value = decodeAnyValue(tagValue, dict, heap);
+						// register it in the global environment and in the cell,
+						// a reference is stored as its decoded value so a cell never contains a reference
+						globalEnv.register(name, value);
+						cells[cell] = isReference(tagValue) ? heap.encodeValue(value, stack, sp, cells) : tagValue;
+						// an operator may have been redefined
+						if (OPERATOR_NAME_SET.contains(name)) {
+							var builtin = hasBuiltinOperators(globalEnv);
+							if (builtinOperators && !builtin) {
+								invalidateFoldedCodes(states);
+							}
+							builtinOperators = builtin;
+						}
+					}
+					case Instructions.LOAD -> {
+	//					throw new UnsupportedOperationException("TODO LOAD");
+						// get local offset
+	          int offset = instrs[pc++];
+						// load value from the local slots
+						int value = load(stack, bp, offset);
+						// push it to the top of the stack
+						push(stack, sp++,  value);
+					}
+					case Instructions.STORE -> {
+						// get local offset
+						int offset = instrs[pc++];
+						// pop value from the stack
+						var value = pop(stack, --sp);
+						// store it in the local slots
+						store(stack, bp, offset, value);
+					}
+					case Instructions.DUP -> {
+						// get value on top of the stack (without remove it)
+						var value = peek(stack, sp);
+						// push it on top of the stack
+						push(stack, sp++, value);
+					}
+					case Instructions.POP -> {
+						// adjust the stack pointer
+						--sp;
 					}
-					// save bp/pc/code in activation zone
-//          stack[activation + offset] = ??
-          var activation = baseArg - 1 + code.slotCount();
-					stack[activation + BP_OFFSET] = bp;
-					stack[activation + PC_OFFSET] = pc;
-					stack[activation + FUN_OFFSET] = encodeDictObject(function, dict);
-
-					// initialize pc, bp and sp
-					pc = 0;
-					bp = baseArg - 1;
-					sp = activation + ACTIVATION_SIZE;
-
-					// initialize all locals that are not parameters
-					for (var i = bp + code.parameterCount(); i < bp + code.slotCount(); i++) {
-						stack[i] = undefined;
+					case Instructions.SWAP -> {
+						throw new UnsupportedOperationException("TODO SWAP");
+						// pop first value from the stack
+						//var value1 = ...
+						// pop second value from the stack
+						//var value2 = ...
+						// push first value on top of the stack
+						//push(...);
+						// push second value on top of the stack
+						//push(...);
 					}
+					case Instructions.FUNCALL, Instructions.TAILCALL -> {
+						// DEBUG
+						//dumpStack(">start funcall dump", stack, sp, bp, dict, heap);
+						// find argument count
+						var argumentCount = instrs[pc++];
+						// find baseArg
+						var baseArg = sp - argumentCount;
+						// stack[baseArg] is the first argument
+						// stack[baseArg + RECEIVER_BASE_ARG_OFFSET] is the receiver
+						// stack[baseArg + QUALIFIER_BASE_ARG_OFFSET] is the qualifier (aka the function)
 
-					// initialize function and instrs of the new function
-					function = newFunction;
-					instrs = code.instrs();
+						// the tag value of the qualifier
+						var newFunctionTag = stack[baseArg + QUALIFIER_BASE_ARG_OFFSET];
 
-					// DEBUG
-					 dumpStack(">end funcall dump", stack, sp, bp, dict, heap);
-				}
-				case Instructions.RET -> {
-					// DEBUG
-					dumpStack("> start ret dump", stack, sp, bp, dict, heap);
+						// monomorphic call site cache, only the functions of the constant pool are cached
+						// because a handle can be reused for another function after a collection
+						CodeState newState;
+						if (state.inlineCaches[pc - 1] == newFunctionTag) {
+							newState = state.callTargets[pc - 1];
+						} else {
+							// decode qualifier
+							var newFunction = (JSObject) decodeAnyValue(newFunctionTag, dict, heap);
+							//{ // DEBUG
+							//	var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
+							//	var args = new Object[argumentCount];
+							//	for (var i = 0; i < argumentCount; i++) {
+							//		args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
+							//	}
+							//	System.err.println("funcall " + newFunction.getName() + " with " + receiver + " " + Arrays.toString(args));
+							//}
+
+							// check if the function contains a code attribute
+							var newCode = Code.of(newFunction);
+							if (newCode == null) { // native call !
+								var nativeFunction = NativeFunction.of(newFunction);
+								if (nativeFunction == HeapSnapshot.NATIVE_FUNCTION) {
+									// a snapshot needs the roots, the receiver and the function are dropped first
+									sp = baseArg - FUNCALL_PREFIX;
+									snapshot(stack, baseArg, argumentCount, sp, cells, heap);
+									push(stack, sp++, undefined);
+									continue;
+								}
+								if (nativeFunction != null && argumentCount <= NativeFunction.MAX_ARITY) {
+									// call with the tagged values, no boxing and no copy of the objects
+									var receiver = stack[baseArg + RECEIVER_BASE_ARG_OFFSET];
+									var result = switch (argumentCount) {
+										case 0 -> nativeFunction.call0(heap, receiver);
+										case 1 -> nativeFunction.call1(heap, receiver, stack[baseArg]);
+										case 2 -> nativeFunction.call2(heap, receiver, stack[baseArg], stack[baseArg + 1]);
+										case 3 -> nativeFunction.call3(heap, receiver, stack[baseArg], stack[baseArg + 1], stack[baseArg + 2]);
+										default -> throw new AssertionError();
+									};
+
+									if (profile != null) {
+										profile.recordCall(state, pc - 1, true);
+									}
+
+									// fixup sp (receiver and function must be dropped)
+									sp = baseArg - FUNCALL_PREFIX;
+
+									// push return value
+									push(stack, sp++, result);
+									continue;
+								}
+
+								// compatibility path, the arguments are decoded
+							  var result = callNative(newFunction, stack, baseArg, argumentCount, sp, cells, dict, heap);
+							  if (profile != null) {
+							  	profile.recordCall(state, pc - 1, true);
+							  }
+
+							  // fixup sp (receiver and function must be dropped)
+							  sp = baseArg - FUNCALL_PREFIX;
+
+							  // push return value
+							  push(stack, sp++, result);
+							  continue;
+							}
+	//						throw new UnsupportedOperationException("TODO FUNCALL");
+
+							// check number of arguments
+							if (newCode.parameterCount() != argumentCount + 1/* this */) {
+								throw new Failure("wrong number of arguments for " + newFunction.name() + " expected "
+										+ (newCode.parameterCount() - 1) + " but was " + argumentCount);
+							}
 
-					// get the return value from the top of the stack
-					int result = pop(stack, --sp);
+							// find the state of the code and fill the cache
+							var operators = builtinOperators;
+							newState = states.computeIfAbsent(newCode, key -> newState(key, operators, dict));
+							if (isDictObject(newFunctionTag)) {
+								state.inlineCaches[pc - 1] = newFunctionTag;
+								state.callTargets[pc - 1] = newState;
+							}
+						}
 
-					System.err.println("ret " + decodeAnyValue(result, dict, heap));
+						// tier up, a hot function is compiled and then called like a native function
+						var compiledFunction = newState.compiledFunction;
+						if (compiledFunction == null && tierUpThreshold != 0 && ++newState.invocationCount == tierUpThreshold) {
+							compiledFunction = tierUp.compile(newState);
+							if (compiledFunction != null) {
+								stats.recordCompiledFunction();
+							}
+						}
+						if (compiledFunction != null) {
+							try {
+								var result = callNative(compiledFunction, stack, baseArg, argumentCount, sp, cells, dict, heap);
+								if (profile != null) {
+									profile.recordCall(state, pc - 1, true);
+								}
 
-					// find activation and restore pc
-					int activation =  bp + code.slotCount();
-					pc = stack[activation + PC_OFFSET];
-					if (pc == 0) {
-//					 end of the interpreter
-						return decodeAnyValue(result, dict, heap);
+								// fixup sp (receiver and function must be dropped)
+								sp = baseArg - FUNCALL_PREFIX;
+
+								// push return value
+								push(stack, sp++, result);
+								continue;
+							} catch (StackOverflowError e) {
+								// the recursion is too deep for the JVM stack, a compiled function has no side effect,
+								// so the function is interpreted from now on, starting with this call
+								newState.compiledFunction = null;
+							}
+						}
+
+						if (profile != null) {
+							profile.recordCall(state, pc - 1, false);
+							profile.recordInvocation(newState, newFunctionTag, dict, heap);
+						}
+
+						// a tail call reuses the current frame, main has no qualifier slot
+						var tailCall = instrs[pc - 2] == Instructions.TAILCALL && bp != 0;
+
+						// grow the stack if the new frame may not fit,
+						// before anything is modified so a stack overflow is reported at the call
+						var frameEnd = (tailCall ? bp : baseArg - 1) + frameSize(newState.code, dict);
+						if (frameEnd > stack.length) {
+							stack = growStack(stack, frameEnd, config.maxStackSize());
+						}
+
+						// the values of the activation of the new frame
+						int savedBp, savedPc, savedFunctionTag;
+						if (tailCall) {
+							// tail call, the new frame replaces the current frame and returns to its caller,
+							// move the qualifier, the receiver and the arguments at the start of the current frame
+							var currentActivation = bp + code.slotCount();
+							savedBp = stack[currentActivation + BP_OFFSET];
+							savedPc = stack[currentActivation + PC_OFFSET];
+							savedFunctionTag = stack[currentActivation + FUN_OFFSET];
+							System.arraycopy(stack, baseArg - FUNCALL_PREFIX, stack, bp - 1, argumentCount + FUNCALL_PREFIX);
+							baseArg = bp + 1;
+						} else {
+							savedBp = encodeSmallInt(bp);
+							savedPc = encodeSmallInt(pc);
+							savedFunctionTag = functionTag;
+							if (++depth == frames.length) {
+								frames = Arrays.copyOf(frames, depth << 1);
+							}
+						}
+
+						// initialize new code, a tail call replaces the state of the current frame
+						state = newState;
+						code = state.code;
+						frames[depth] = state;
+
+						// save bp/pc/code in activation zone
+	//          stack[activation + offset] = ??
+	          var activation = baseArg - 1 + code.slotCount();
+						stack[activation + BP_OFFSET] = savedBp;
+						stack[activation + PC_OFFSET] = savedPc;
+						stack[activation + FUN_OFFSET] = savedFunctionTag;
+
+						// initialize pc, bp and sp
+						pc = 0;
+						bp = baseArg - 1;
+						sp = activation + ACTIVATION_SIZE;
+
+						// initialize all locals that are not parameters
+						for (var i = bp + code.parameterCount(); i < bp + code.slotCount(); i++) {
+							stack[i] = undefined;
+						}
+
+						// initialize function and instrs of the new function
+						functionTag = newFunctionTag;
+						instrs = state.instrs;
+
+						// DEBUG
+						//dumpStack(">end funcall dump", stack, sp, bp, dict, heap);
 					}
+					case Instructions.RET, Instructions.CONST_RET -> {
+						// DEBUG
+						//dumpStack("> start ret dump", stack, sp, bp, dict, heap);
 
-//          throw new UnsupportedOperationException("NYI");
+						// get the return value from the top of the stack (or from the instructions for a CONST_RET)
+						int result = (instrs[pc - 1] == Instructions.CONST_RET) ? instrs[pc] : pop(stack, --sp);
 
-					// restore sp, function and bp
-					sp = bp - 1; /* Qualifier */
-					function = (JSObject) decodeDictObject(stack[activation + FUN_OFFSET], dict);
-					bp = stack[activation + BP_OFFSET];
+						//System.err.println("ret " + decodeAnyValue(result, dict, heap));
 
-					// restore code and instrs
-					code = (Code) function.lookupOrDefault("__code__",null);
-					instrs = code.instrs();
+						// find activation and restore pc
+						int activation =  bp + code.slotCount();
+						pc = decodeSmallInt(stack[activation + PC_OFFSET]);
+						if (pc == 0) {
+	//					 end of the interpreter
+							return decodeAnyValue(result, dict, heap);
+						}
 
-					// push return value
-					push(stack, sp++, result);
+	//          throw new UnsupportedOperationException("NYI");
 
-					// DEBUG
-					 dumpStack("> end ret dump", stack, sp, bp, dict, heap);
-				}
-				case Instructions.GOTO -> {
-//					throw new UnsupportedOperationException("TODO GOTO");
-					// get the label
-					int label = instrs[pc];
-					// change the program counter to the label
-					pc = label;
-				}
-				case Instructions.JUMP_IF_FALSE -> {
-//					throw new UnsupportedOperationException("TODO JUMP_IF_FALSE");
-					// get the label
-					var label = instrs[pc++];
-					// get the value on top of the stack
-					var condition = pop(stack, --sp);
-					// if condition is false change the program counter to the label
-					if (condition == TagValues.FALSE) {
+						// restore sp, function and bp
+						sp = bp - 1; /* Qualifier */
+						functionTag = stack[activation + FUN_OFFSET];
+						bp = decodeSmallInt(stack[activation + BP_OFFSET]);
+
+						// restore the state of the code and instrs
+						state = frames[--depth];
+						code = state.code;
+						instrs = state.instrs;
+
+						// push return value
+						push(stack, sp++, result);
+
+						// DEBUG
+						//dumpStack("> end ret dump", stack, sp, bp, dict, heap);
+					}
+					case Instructions.GOTO -> {
+	//					throw new UnsupportedOperationException("TODO GOTO");
+						// get the label
+						int label = instrs[pc];
+						// change the program counter to the label
 						pc = label;
 					}
-				}
-				case Instructions.NEW -> {
-//					throw new UnsupportedOperationException("TODO NEW");
-					// get the class from the instructions
-					var vClass = instrs[pc++];
-					var clazz = (JSObject) decodeDictObject(vClass, dict);
-
-					// out of memory ?
-					if (hp + OBJECT_HEADER_SIZE + clazz.length() >= heap.length) {
-					  dumpHeap("before GC ", heap, hp, dict);
-
-					  throw new UnsupportedOperationException("TODO !!! GC !!!");
-//					dumpHeap("after GC ", heap, hp, dict);
+					case Instructions.JUMP_IF_FALSE -> {
+	//					throw new UnsupportedOperationException("TODO JUMP_IF_FALSE");
+						// get the label
+						var label = instrs[pc++];
+						// get the value on top of the stack
+						var condition = pop(stack, --sp);
+						// if condition is false change the program counter to the label
+						if (condition == TagValues.FALSE) {
+							pc = label;
+						}
 					}
+					case Instructions.NEW -> {
+	//					throw new UnsupportedOperationException("TODO NEW");
+						// get the class from the instructions
+						var vClass = instrs[pc++];
+						var clazz = (JSObject) decodeDictObject(vClass, dict);
 
-					var ref = hp;
+						// allocate the class and the empty GC mark on heap
+						var size = heap.objectSize(vClass);
+						var ref = heap.allocate(vClass, size);
+						// out of memory ?
+						if (ref == -1) {
+							// the field values are still on the stack, so they are roots
+							heap.collect(stack, sp, cells, size);
+							ref = heap.allocate(vClass, size);
+							if (ref == -1) {
+								throw new Failure("out of memory");
+							}
+						}
 
-					// write the class on heap
-					heap[ref] = vClass;
-					// write the empty GC mark
-					heap[ref + GC_OFFSET] = GC_EMPTY;
-					// get all fields values from the stack and write them on heap
-					var baseArg = sp - clazz.length();
-					for (var i = 0; i < clazz.length(); i++) {
-						heap[ref + OBJECT_HEADER_SIZE + i] = stack[baseArg + i];
-					}
-					// adjust stack pointer and heap pointer
-					sp = baseArg;
-					hp += OBJECT_HEADER_SIZE + clazz.length();
+						// get all fields values from the stack and write them on heap
+						var baseArg = sp - clazz.length();
+						for (var i = 0; i < clazz.length(); i++) {
+							heap.set(ref + OBJECT_HEADER_SIZE + i, stack[baseArg + i]);
+						}
+						// the slot of an empty object
+						for (var i = OBJECT_HEADER_SIZE + clazz.length(); i < size; i++) {
+							heap.set(ref + i, undefined);
+						}
+						// adjust stack pointer
+						sp = baseArg;
 
-					// push the reference on top of the stack
-					push(stack, sp++, encodeReference(ref));
-				}
-				case Instructions.GET -> {
-//					throw new UnsupportedOperationException("TODO GET");
-					// get field name from the instructions
-					var fieldName = (String) decodeDictObject(instrs[pc++], dict);
-
-					// get reference from the top of the stack
-					int value = pop(stack, --sp);
-          if (!isReference(value)) {
-            throw new Failure("TOP OF THE STACK");
-          }
-
-					int ref = decodeReference(value);
-					// get class on heap from the reference
-					int vClass = heap[ref];
-					// get JSObject from class
-					var clazz = (JSObject) decodeDictObject(vClass, dict);
-					// get field slot from JSObject
-					var slot = clazz.lookupOrDefault(fieldName, null);
-					if (slot == null) {
-					// no slot, push undefined
+						// push the reference on top of the stack
+						push(stack, sp++, encodeReference(ref));
+					}
+					case Instructions.GET -> {
+						// get reference from the top of the stack
+						var value = pop(stack, --sp);
+						if (!isReference(value)) {
+							throw new Failure("can not get field " + decodeDictObject(instrs[pc], dict) + " of " + decodeAnyValue(value, dict, heap));
+						}
+						// resolve the field slot and quicken the instruction
+						var address = resolveField(state, pc, decodeReference(value), Instructions.GET_CACHED, dict, heap);
+						pc++;
+						// no slot, push undefined otherwise push the field value
+						push(stack, sp++, address == -1 ? undefined : heap.get(address));
+					}
+					case Instructions.GET_CACHED -> {
+						// get reference from the top of the stack
+						var value = pop(stack, --sp);
+						if (!isReference(value)) {
+							throw new Failure("can not get field " + decodeDictObject(instrs[pc], dict) + " of " + decodeAnyValue(value, dict, heap));
+						}
+						var ref = decodeReference(value);
+						var vClass = heap.get(ref);
+						// check the class against the inline cache, re-resolve the slot if it's another class
+						var cache = state.inlineCaches[pc];
+						var address = ((int) (cache >>> 32) == vClass) ? ref + OBJECT_HEADER_SIZE + (int) cache : resolveField(state, pc, ref, Instructions.GET_CACHED, dict, heap);
+						pc++;
+						push(stack, sp++, address == -1 ? undefined : heap.get(address));
+					}
+					case Instructions.PUT, Instructions.PUT_CACHED -> {
+						// get new value from the top of the stack
+						var value = pop(stack, --sp);
+						// get reference from the top of the stack
+						var receiver = pop(stack, --sp);
+						if (!isReference(receiver)) {
+							throw new Failure("can not set field " + decodeDictObject(instrs[pc], dict) + " of " + decodeAnyValue(receiver, dict, heap));
+						}
+						var ref = decodeReference(receiver);
+						var vClass = heap.get(ref);
+						// check the class against the inline cache (always empty for a PUT),
+						// otherwise resolve the slot (or add the field) and quicken the instruction
+						var cache = state.inlineCaches[pc];
+						if ((int) (cache >>> 32) == vClass && (int) cache >= 0) {
+							// store field value from the top of the stack on heap (with a write barrier)
+							heap.putField(ref, (int) cache, value);
+						} else {
+							putField(state, pc, sp, stack, cells, dict, heap);
+						}
+						pc++;
+					}
+					case Instructions.LOAD_LOAD -> {
+						// LOAD followed by a LOAD
+						push(stack, sp++, load(stack, bp, instrs[pc++]));
+						push(stack, sp++, load(stack, bp, instrs[pc++]));
+					}
+					case Instructions.LOAD_CONST -> {
+						// LOAD followed by a CONST
+						push(stack, sp++, load(stack, bp, instrs[pc++]));
+						push(stack, sp++, instrs[pc++]);
+					}
+					case Instructions.CONST_STORE -> {
+						// CONST followed by a STORE
+						var value = instrs[pc++];
+						store(stack, bp, instrs[pc++], value);
+					}
+					case Instructions.LOAD_GET -> {
+						// LOAD followed by a GET, the field is accessed through the inline cache
+						var value = load(stack, bp, instrs[pc++]);
+						if (!isReference(value)) {
+							throw new Failure("can not get field " + decodeDictObject(instrs[pc], dict) + " of " + decodeAnyValue(value, dict, heap));
+						}
+						var ref = decodeReference(value);
+						var vClass = heap.get(ref);
+						var cache = state.inlineCaches[pc];
+						var address = ((int) (cache >>> 32) == vClass) ? ref + OBJECT_HEADER_SIZE + (int) cache : resolveField(state, pc, ref, -1, dict, heap);
+						pc++;
+						push(stack, sp++, address == -1 ? undefined : heap.get(address));
+					}
+					case Instructions.PRINT -> {
+						// pop the value on top of the stack
+	          var result = pop(stack, --sp);
+						// find "print" in the global environment
+						var print = (JSObject) globalEnv.lookupOrDefault("print", null);
+						// invoke it, with the tagged value if it's a native function
+						var nativePrint = NativeFunction.of(print);
+						if (nativePrint != null) {
+							nativePrint.call1(heap, undefined, result);
+						} else {
+							print.invoke(UNDEFINED, new Object[]{ decodeAnyValue(result, dict, heap) });
+						}
+						// push undefined on the stack
 						push(stack, sp++, undefined);
-						continue;
 					}
-					// get the field index
-					int fieldIndex = (int) slot;
-					// get field value
-					int fieldValue = heap[ref + OBJECT_HEADER_SIZE + fieldIndex];
-					// push field value on top of the stack
-					push(stack, sp++, fieldValue);
-				}
-				case Instructions.PUT -> {
-					throw new UnsupportedOperationException("TODO PUT");
-					// get field name from the instructions
-					// var fieldName = (String) ...
-					// get new value from the top of the stack
-					//var value = ...
-					// get reference from the top of the stack
-					// var ref = decodeReference(...);
-					// get class on heap from the reference
-					//var vClass = heap[ref];
-					// get JSObject from class
-					//var clazz = (JSObject) decodeDictObject(vClass, dict);
-					// get field slot from JSObject
-					//var slot = ...
-					//if (slot == null) {
-					//	throw new Failure("invalid field " + fieldName);
-					//}
-					// get the field index
-					//var fieldIndex = ...
-					// store field value from the top of the stack on heap
-					//heap[...] = ...;
+					case Instructions.ADD -> {
+						var left = stack[sp - 2];
+						var right = stack[sp - 1];
+						// (2a + 1) + (2b + 1) - 1 <=> 2 (a + b) + 1, it fits in a small int if there is no overflow,
+						// i.e. if the sign of the result is the sign of one of the operands
+						var result = left + (right - 1);
+						if (builtinOperators && isSmallInt(left) && isSmallInt(right) && ((left ^ result) & ((right - 1) ^ result)) >= 0) {
+							stack[sp-- - 2] = result;
+							pc += 2;  // skip the slow path
+							continue;
+						}
+						sp = prepareOperatorCall(stack, sp, lookupOperator(cells, operatorCells, Instructions.ADD - Instructions.ADD, globalEnv, dict, heap, stack, sp), undefined);
+					}
+					case Instructions.SUB -> {
+						var left = stack[sp - 2];
+						var right = stack[sp - 1];
+						// (2a + 1) - (2b + 1) + 1 <=> 2 (a - b) + 1, it fits in a small int if there is no overflow,
+						// i.e. if the operands have the same sign or the result has the sign of the left operand
+						var result = left - (right - 1);
+						if (builtinOperators && isSmallInt(left) && isSmallInt(right) && ((left ^ (right - 1)) & (left ^ result)) >= 0) {
+							stack[sp-- - 2] = result;
+							pc += 2;  // skip the slow path
+							continue;
+						}
+						sp = prepareOperatorCall(stack, sp, lookupOperator(cells, operatorCells, Instructions.SUB - Instructions.ADD, globalEnv, dict, heap, stack, sp), undefined);
+					}
+					case Instructions.MUL -> {
+						var left = stack[sp - 2];
+						var right = stack[sp - 1];
+						if (builtinOperators && isSmallInt(left) && isSmallInt(right)) {
+							var result = (long) decodeSmallInt(left) * decodeSmallInt(right);
+							if (fitsSmallInt(result)) {
+								stack[sp-- - 2] = encodeSmallInt((int) result);
+								pc += 2;  // skip the slow path
+								continue;
+							}
+						}
+						sp = prepareOperatorCall(stack, sp, lookupOperator(cells, operatorCells, Instructions.MUL - Instructions.ADD, globalEnv, dict, heap, stack, sp), undefined);
+					}
+					case Instructions.DIV, Instructions.MOD -> {
+						var operator = instrs[pc - 1];
+						var left = stack[sp - 2];
+						var right = stack[sp - 1];
+						// a division by zero takes the slow path
+						if (builtinOperators && isSmallInt(left) && isSmallInt(right) && right != encodeSmallInt(0)) {
+							var a = decodeSmallInt(left);
+							var b = decodeSmallInt(right);
+							var result = (operator == Instructions.DIV) ? a / b : a % b;
+							if (fitsSmallInt(result)) {  // MIN_SMALL_INT / -1 does not fit
+								stack[sp-- - 2] = encodeSmallInt(result);
+								pc += 2;  // skip the slow path
+								continue;
+							}
+						}
+						sp = prepareOperatorCall(stack, sp, lookupOperator(cells, operatorCells, operator - Instructions.ADD, globalEnv, dict, heap, stack, sp), undefined);
+					}
+					case Instructions.EQ, Instructions.NE, Instructions.LT, Instructions.LE, Instructions.GT, Instructions.GE -> {
+						var operator = instrs[pc - 1];
+						var left = stack[sp - 2];
+						var right = stack[sp - 1];
+						// the encoding of the small ints preserves the order
+						if (builtinOperators && isSmallInt(left) && isSmallInt(right)) {
+							var comparison = Integer.compare(left, right);
+							var result = switch (operator) {
+								case Instructions.EQ -> comparison == 0;
+								case Instructions.NE -> comparison != 0;
+								case Instructions.LT -> comparison < 0;
+								case Instructions.LE -> comparison <= 0;
+								case Instructions.GT -> comparison > 0;
+								case Instructions.GE -> comparison >= 0;
+								default -> throw new AssertionError();
+							};
+							stack[sp-- - 2] = result ? TRUE : FALSE;
+							pc += 2;  // skip the slow path
+							continue;
+						}
+						sp = prepareOperatorCall(stack, sp, lookupOperator(cells, operatorCells, operator - Instructions.ADD, globalEnv, dict, heap, stack, sp), undefined);
+					}
+					default -> throw new AssertionError("unknown instruction " + instrs[pc - 1]);
 				}
-				case Instructions.PRINT -> {
-					// pop the value on top of the stack
-          var result = pop(stack, --sp);
-					// decode the value
-					var value = decodeAnyValue(result ,dict, heap);
-					// find "print" in the global environment
-					var print = (JSObject) globalEnv.lookupOrDefault("print", null);
-					// invoke it
-					print.invoke(UNDEFINED, new Object[]{ value });
-					// push undefined on the stack
-					push(stack, sp++, undefined);
+			}
+		} catch (Failure failure) {
+			throw withStackTrace(failure, frames, depth, pc, bp, functionTag, stack, dict, heap);
+		}
+	}
+
+
+	// maximum number of frames in the stack trace of a failure, the frames of main are always shown
+	private static final int MAX_TRACE_FRAMES = 16;
+
+	// a failure with the line and the stack of the functions where the failure occurred,
+	// the frames are found using the activations so it costs nothing until there is a failure,
+	// pc is the index after the opcode of the current instruction (or after one of its operands)
+	private static Failure withStackTrace(Failure failure, CodeState[] frames, int depth, int pc, int bp, int functionTag, int[] stack, Dictionary dict, Heap heap) {
+		var builder = new StringBuilder(failure.getMessage());
+		for (var frame = depth;; frame--) {
+			var code = frames[frame].code;
+			if (depth - frame < MAX_TRACE_FRAMES || frame == 0) {
+				var function = (JSObject) decodeAnyValue(functionTag, dict, heap);
+				builder.append("\n  at ").append(function.name());
+				var line = code.lineNumber(pc - 1);
+				if (line != -1) {
+					builder.append(" (line ").append(line).append(')');
 				}
-				default -> throw new AssertionError("unknown instruction " + instrs[pc - 1]);
+			} else if (depth - frame == MAX_TRACE_FRAMES) {
+				builder.append("\n  ... ").append(frame).append(" more");
 			}
+			if (frame == 0) {
+				return new Failure(builder.toString(), failure);
+			}
+			// the activation of the frame contains the pc, the function and the bp of the caller
+			var activation = bp + code.slotCount();
+			pc = decodeSmallInt(stack[activation + PC_OFFSET]);
+			functionTag = stack[activation + FUN_OFFSET];
+			bp = decodeSmallInt(stack[activation + BP_OFFSET]);
 		}
 	}
 
+	// write a snapshot of the heap in the file given as argument (see HeapSnapshot),
+	// the heap is fully collected first so the snapshot only contains the live objects,
+	// the values of the stack between 0 and sp and the cells are the roots
+	private static void snapshot(int[] stack, int baseArg, int argumentCount, int sp, int[] cells, Heap heap) {
+		if (argumentCount != 1 || !(heap.decode(stack[baseArg]) instanceof String path)) {
+			throw new Failure("snapshot requires a path");
+		}
+		heap.collectAll(stack, sp, cells);
+		try {
+			HeapSnapshot.write(Path.of(path), heap, stack, sp, cells);
+		} catch (IOException e) {
+			throw new Failure("can not write the snapshot " + path, e);
+		}
+	}
+
+	// call a native function (or a compiled function) with the decoded receiver and arguments,
+	// return the encoded result
+	private static int callNative(JSObject function, int[] stack, int baseArg, int argumentCount, int sp, int[] cells, Dictionary dict, Heap heap) {
+		// decode receiver
+		var receiver = decodeAnyValue(stack[baseArg + RECEIVER_BASE_ARG_OFFSET], dict, heap);
+		// decode arguments
+		var args = new Object[argumentCount];
+		for (var i = 0; i < argumentCount; i++) {
+			args[i] = decodeAnyValue(stack[baseArg + i], dict, heap);
+		}
+
+		//System.err.println("call native " + function.name() + " with " +
+		//receiver + " " + Arrays.toString(args));
+
+		// call native function
+		return heap.encodeValue(function.invoke(receiver, args), stack, sp, cells);
+	}
 
-	@SuppressWarnings("unchecked")
 	static JSObject createGlobalEnv(PrintStream outStream) {
 		var globalEnv = JSObject.newEnv(null);
 		globalEnv.register("globalThis", globalEnv);
-		globalEnv.register("print", JSObject.newFunction("print", (_, args) -> {
-			System.err.println("print called with " + Arrays.toString(args));
+		globalEnv.register("print", NativeFunction.newFunction("print", (_, args) -> {
+			//System.err.println("print called with " + Arrays.toString(args));
 			outStream.println(Arrays.stream(args).map(Object::toString).collect(Collectors.joining(" ")));
 			return UNDEFINED;
+		}, new NativeFunction() {
+			@Override
+			public int call0(HeapView heap, int receiver) {
+				outStream.println();
+				return heap.undefined();
+			}
+			@Override
+			public int call1(HeapView heap, int receiver, int arg0) {
+				outStream.println(heap.format(arg0));
+				return heap.undefined();
+			}
+			@Override
+			public int call2(HeapView heap, int receiver, int arg0, int arg1) {
+				outStream.println(heap.format(arg0) + " " + heap.format(arg1));
+				return heap.undefined();
+			}
+			@Override
+			public int call3(HeapView heap, int receiver, int arg0, int arg1, int arg2) {
+				outStream.println(heap.format(arg0) + " " + heap.format(arg1) + " " + heap.format(arg2));
+				return heap.undefined();
+			}
 		}));
-		globalEnv.register("+", JSObject.newFunction("+", (_, args) -> (Integer) args[0] + (Integer) args[1]));
-		globalEnv.register("-", JSObject.newFunction("-", (_, args) -> (Integer) args[0] - (Integer) args[1]));
-		globalEnv.register("/", JSObject.newFunction("/", (_, args) -> (Integer) args[0] / (Integer) args[1]));
-		globalEnv.register("*", JSObject.newFunction("*", (_, args) -> (Integer) args[0] * (Integer) args[1]));
-		globalEnv.register("%", JSObject.newFunction("%", (_, args) -> (Integer) args[0] % (Integer) args[1]));
-		globalEnv.register("==", JSObject.newFunction("==", (_, args) -> args[0].equals(args[1]) ? 1 : 0));
-		globalEnv.register("!=", JSObject.newFunction("!=", (_, args) -> !args[0].equals(args[1]) ? 1 : 0));
-		globalEnv.register("<", JSObject.newFunction("<", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) < 0) ? 1 : 0));
-		globalEnv.register("<=", JSObject.newFunction("<=", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) <= 0) ? 1 : 0));
-		globalEnv.register(">", JSObject.newFunction(">", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) > 0) ? 1 : 0));
-		globalEnv.register(">=", JSObject.newFunction(">=", (_, args) -> (((Comparable<Object>) args[0]).compareTo(args[1]) >= 0) ? 1 : 0));
+		globalEnv.register("snapshot", NativeFunction.newFunction("snapshot", (_, _) -> {
+			throw new Failure("snapshot is only supported by the interpreter, not by the compiled functions");
+		}, HeapSnapshot.NATIVE_FUNCTION));
+		for (var i = 0; i < OPERATORS.length; i++) {
+			globalEnv.register(OPERATOR_NAMES[i], OPERATORS[i]);
+		}
 		return globalEnv;
 	}
 
 	public static void interpret(Script script, PrintStream outStream) {
+		interpret(script, outStream, ExecutionConfig.DEFAULT, new ExecutionStats());
+	}
+
+	public static void interpret(Script script, PrintStream outStream, ExecutionConfig config, ExecutionStats stats) {
+		interpret(compile(script), outStream, config, stats);
+	}
+
+	// compile the script, the compiled script can be executed several times, concurrently
+	public static CompiledScript compile(Script script) {
+		var dictionary = new Dictionary();
+		var function = InstrRewriter.createFunction("main", List.of(), script.body(), dictionary);
+		return new CompiledScript(function, dictionary);
+	}
+
+	// interpret a compiled script, this method can be called by several threads at the same time
+	// with the same compiled script but each execution must have its own stats
+	public static void interpret(CompiledScript script, PrintStream outStream, ExecutionConfig config, ExecutionStats stats) {
 		var globalEnv = createGlobalEnv(outStream);
-		var body = script.body();
+		execute(script.function, script.dict, globalEnv, config, stats);
+	}
+
+	// compile the script and write the instructions and the dictionary in a file (see CodeFile)
+	public static void compile(Script script, Path path) throws IOException {
+		var compiledScript = compile(script);
+		CodeFile.write(path, compiledScript.function, compiledScript.dict);
+	}
+
+	// load a script compiled by compile(Script, Path)
+	public static CompiledScript load(Path path) throws IOException {
 		var dictionary = new Dictionary();
-		var function = InstrRewriter.createFunction("main", List.of(), body, dictionary);
-		execute(function, dictionary, globalEnv);
+		var function = CodeFile.read(path, dictionary);
+		return new CompiledScript(function, dictionary);
+	}
+
+	// interpret a script compiled by compile(Script, Path)
+	public static void interpret(Path path, PrintStream outStream) throws IOException {
+		interpret(path, outStream, ExecutionConfig.DEFAULT, new ExecutionStats());
+	}
+
+	public static void interpret(Path path, PrintStream outStream, ExecutionConfig config, ExecutionStats stats) throws IOException {
+		interpret(load(path), outStream, config, stats);
+	}
+
+	// print the histogram of the objects of a snapshot written by the function snapshot(path) of a script
+	public static void printHistogram(Path path, PrintStream outStream) throws IOException {
+		try (var snapshot = HeapSnapshot.read(path)) {
+			snapshot.printHistogram(outStream);
+		}
 	}
 }
@@ -1,30 +1,52 @@
 package fr.umlv.smalljs.stackinterp;
 
-import fr.umlv.smalljs.rt.JSObject;
-
 interface TagValues {
-	// every value are stored as 32 bits integer, boolean, small ints, constant (dictionary object) and reference
+	// every value are stored as 32 bits integer, boolean, small ints, constant (dictionary object), handle and reference
 	// the suffix indicates the kind of value
 	//    1 -> small integers (SmallInt) or boolean (TRUE/FALSE)
-	//   10 -> dictionary index
+	//  010 -> dictionary index (constant pool, only the constants of the code)
+	//  110 -> handle index (a Java object created at runtime, see Handles)
 	//   00 -> reference 
 	
   static boolean isSmallInt(int value) {
     return (value & 0b1) == 0b1;
   }
 
+  // small ints are signed ints on 31 bits
+  int MIN_SMALL_INT = -(1 << 30);
+  int MAX_SMALL_INT = (1 << 30) - 1;
+
+  static boolean fitsSmallInt(long value) {
+    return value >= MIN_SMALL_INT && value <= MAX_SMALL_INT;
+  }
+
   static int encodeSmallInt(int value) {
     return value << 1 | 0b1;
   }
   static int decodeSmallInt(int value) {
-    return value >>> 1;
+    return value >> 1;
+  }
+
+  static boolean isDictObject(int value) {
+    return (value & 0b111) == 0b010;
   }
 
   static int encodeDictObject(Object object, Dictionary dict) {
-    return dict.index(object) << 2 | 0b10;
+    return dict.index(object) << 3 | 0b010;
   }
   static Object decodeDictObject(int value, Dictionary dict) {
-    return dict.getConst(value >>> 2);
+    return dict.getConst(value >>> 3);
+  }
+
+  static boolean isHandle(int value) {
+    return (value & 0b111) == 0b110;
+  }
+
+  static int encodeHandle(int index) {
+    return index << 3 | 0b110;
+  }
+  static int decodeHandle(int value) {
+    return value >>> 3;
   }
   
   static boolean isReference(int value) {
@@ -38,22 +60,17 @@ interface TagValues {
     return value >>> 2;
   }
 
-  static Object decodeAnyValue(int tagValue, Dictionary dict, int[] heap) {
+  static Object decodeAnyValue(int tagValue, Dictionary dict, Heap heap) {
     if (isSmallInt(tagValue)) {
       return decodeSmallInt(tagValue);
     }
     if (isReference(tagValue)) {
-      var ref = decodeReference(tagValue);
-      var clazz = (JSObject) decodeDictObject(heap[ref], dict);
-      return clazz.mirror(offset -> decodeAnyValue(heap[ref + OBJECT_HEADER_SIZE + (int)offset], dict, heap));
+      return heap.view(tagValue);
     }
-    return decodeDictObject(tagValue, dict);
-  }
-  static int encodeAnyValue(Object object, Dictionary dict) {
-  	if (object instanceof Integer smallInt && smallInt >= 0) {
-      return encodeSmallInt(smallInt);
+    if (isHandle(tagValue)) {
+      return heap.handles.get(decodeHandle(tagValue));
     }
-    return encodeDictObject(object, dict);
+    return decodeDictObject(tagValue, dict);
   }
 
   int TRUE = encodeSmallInt(1);
@@ -0,0 +1,274 @@
+package fr.umlv.smalljs.stackinterp;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fr.umlv.smalljs.ast.Expr;
+import fr.umlv.smalljs.ast.Expr.Block;
+import fr.umlv.smalljs.ast.Expr.Call;
+import fr.umlv.smalljs.ast.Expr.FieldAccess;
+import fr.umlv.smalljs.ast.Expr.FieldAssignment;
+import fr.umlv.smalljs.ast.Expr.Fun;
+import fr.umlv.smalljs.ast.Expr.Identifier;
+import fr.umlv.smalljs.ast.Expr.If;
+import fr.umlv.smalljs.ast.Expr.Literal;
+import fr.umlv.smalljs.ast.Expr.MethodCall;
+import fr.umlv.smalljs.ast.Expr.ObjectLiteral;
+import fr.umlv.smalljs.ast.Expr.Return;
+import fr.umlv.smalljs.ast.Expr.VarAssignment;
+import fr.umlv.smalljs.jvminterp.ByteCodeRewriter;
+import fr.umlv.smalljs.rt.JSObject;
+
+// Compiles the hot functions to JVM bytecode using the ByteCodeRewriter of the jvm interpreter.
+//
+// Each call to a function increments the invocation counter of the state of its code, when the counter reaches
+// the threshold (see ExecutionConfig.tierUpThreshold()), the function is compiled and the interpreter
+// calls the compiled function like a native function (the arguments and the result are decoded/encoded).
+//
+// Only the functions that behave exactly the same when compiled are compiled,
+// a function can be compiled if
+//  - it's declared at top level and its name is never declared again or assigned,
+//  - it only uses its parameters and local variables, literals, if, return and calls
+//    to the operators or to other functions that can be compiled,
+//  - it does not do a tail call to a function, a compiled function does not reuse its stack frame.
+// So a compiled function has no side effect, if it overflows the JVM stack, the interpreter
+// can run the call again, the interpreted frames are only limited by ExecutionConfig.maxStackSize().
+// The compiled functions call the other compiled functions directly, so a function is compiled
+// with all the functions it calls. Because the language has no loop, only the calls are counted.
+//
+// A condition is false for the stack interpreter only if it's 0 (FALSE),
+// so the conditions are wrapped in a call to TRUTH_NAME that implements the same semantics.
+final class TierUp {
+	// not a valid identifier, so it can not be declared by a script
+	private static final String TRUTH_NAME = "truth?";
+	private static final JSObject TRUTH =
+			JSObject.newFunction(TRUTH_NAME, (_, args) -> !(args[0] instanceof Integer value && value == 0));
+
+	private static final Set<String> BUILTIN_NAMES;
+	static {
+		var builtinNames = new HashSet<>(List.of(StackInterpreter.OPERATOR_NAMES));
+		builtinNames.add("print");
+		BUILTIN_NAMES = Set.copyOf(builtinNames);
+	}
+
+	private final Fun script;
+	private final JSObject globalEnv;
+	private HashMap<String, Fun> compilableFunctions;  // lazily computed
+	private JSObject compiledEnv;  // the compiled functions, lazily created
+	private final HashMap<String, JSObject> compiledFunctions = new HashMap<>();
+
+	// script is the main function or null if the functions have no source
+	TierUp(Fun script, JSObject globalEnv) {
+		this.script = script;
+		this.globalEnv = globalEnv;
+	}
+
+	// compile the function of the code, return the compiled function or null if it can not be compiled
+	JSObject compile(CodeState state) {
+		var fun = state.code.fun();
+		if (fun == null || script == null) {
+			return null;
+		}
+		if (compilableFunctions == null) {
+			compilableFunctions = compilableFunctions(script.body());
+			compiledEnv = JSObject.newEnv(globalEnv);
+			compiledEnv.register(TRUTH_NAME, TRUTH);
+		}
+		if (compilableFunctions.get(fun.name()) != fun) {
+			return null;
+		}
+		var compiledFunction = compile(fun);
+		state.compiledFunction = compiledFunction;
+		return compiledFunction;
+	}
+
+	private JSObject compile(Fun fun) {
+		var compiledFunction = compiledFunctions.get(fun.name());
+		if (compiledFunction != null) {
+			return compiledFunction;
+		}
+		compiledFunction = ByteCodeRewriter.createFunction(fun.name(), fun.parameters(), (Block) rewrite(fun.body()), compiledEnv);
+		compiledFunctions.put(fun.name(), compiledFunction);
+		compiledEnv.register(fun.name(), compiledFunction);
+
+		// compile the functions called
+		var callees = new HashSet<String>();
+		visitCallees(fun.body(), callees);
+		for (var callee : callees) {
+			var calleeFun = compilableFunctions.get(callee);
+			if (calleeFun != null) {
+				compile(calleeFun);
+			}
+		}
+		return compiledFunction;
+	}
+
+	// wrap the conditions in a call to TRUTH_NAME
+	private static Expr rewrite(Expr expression) {
+		return switch (expression) {
+			case Block(List<Expr> exprs, int lineNumber) ->
+					new Block(exprs.stream().map(TierUp::rewrite).toList(), lineNumber);
+			case If(Expr condition, Block trueBlock, Block falseBlock, int lineNumber) ->
+					new If(new Call(new Identifier(TRUTH_NAME, lineNumber), List.of(rewrite(condition)), lineNumber),
+							(Block) rewrite(trueBlock), (Block) rewrite(falseBlock), lineNumber);
+			case Return(Expr expr, int lineNumber) -> new Return(rewrite(expr), lineNumber);
+			case VarAssignment(String name, Expr expr, boolean declaration, int lineNumber) ->
+					new VarAssignment(name, rewrite(expr), declaration, lineNumber);
+			case Call(Expr qualifier, List<Expr> args, int lineNumber) ->
+					new Call(qualifier, args.stream().map(TierUp::rewrite).toList(), lineNumber);
+			case Literal _, Identifier _ -> expression;
+			default -> throw new AssertionError("not compilable " + expression);
+		};
+	}
+
+	private static void visitCallees(Expr expression, Set<String> callees) {
+		switch (expression) {
+			case Block(List<Expr> exprs, _) -> exprs.forEach(expr -> visitCallees(expr, callees));
+			case If(Expr condition, Block trueBlock, Block falseBlock, _) -> {
+				visitCallees(condition, callees);
+				visitCallees(trueBlock, callees);
+				visitCallees(falseBlock, callees);
+			}
+			case Return(Expr expr, _) -> visitCallees(expr, callees);
+			case VarAssignment(_, Expr expr, _, _) -> visitCallees(expr, callees);
+			case Call(Expr qualifier, List<Expr> args, _) -> {
+				if (qualifier instanceof Identifier(String name, _)) {
+					callees.add(name);
+				}
+				args.forEach(arg -> visitCallees(arg, callees));
+			}
+			default -> {}
+		}
+	}
+
+	// the global names declared or assigned, and the number of declarations
+	private record GlobalNames(HashMap<String, Integer> declarations, HashSet<String> assignments) {
+		boolean isStable(String name) {
+			return !assignments.contains(name) && declarations.getOrDefault(name, 0) <= 1;
+		}
+	}
+
+	private static void visitGlobalNames(Expr expression, GlobalNames globalNames) {
+		switch (expression) {
+			case Block(List<Expr> exprs, _) -> exprs.forEach(expr -> visitGlobalNames(expr, globalNames));
+			case Fun(String name, _, boolean toplevel, Block body, _) -> {
+				if (toplevel) {
+					globalNames.declarations.merge(name, 1, Integer::sum);
+				}
+				visitGlobalNames(body, globalNames);
+			}
+			case VarAssignment(String name, Expr expr, _, _) -> {
+				globalNames.assignments.add(name);
+				visitGlobalNames(expr, globalNames);
+			}
+			case If(Expr condition, Block trueBlock, Block falseBlock, _) -> {
+				visitGlobalNames(condition, globalNames);
+				visitGlobalNames(trueBlock, globalNames);
+				visitGlobalNames(falseBlock, globalNames);
+			}
+			case Return(Expr expr, _) -> visitGlobalNames(expr, globalNames);
+			case Call(Expr qualifier, List<Expr> args, _) -> {
+				visitGlobalNames(qualifier, globalNames);
+				args.forEach(arg -> visitGlobalNames(arg, globalNames));
+			}
+			case ObjectLiteral(Map<String, Expr> initMap, _) -> initMap.values().forEach(expr -> visitGlobalNames(expr, globalNames));
+			case FieldAccess(Expr receiver, _, _) -> visitGlobalNames(receiver, globalNames);
+			case FieldAssignment(Expr receiver, _, Expr expr, _) -> {
+				visitGlobalNames(receiver, globalNames);
+				visitGlobalNames(expr, globalNames);
+			}
+			case MethodCall(Expr receiver, _, List<Expr> args, _) -> {
+				visitGlobalNames(receiver, globalNames);
+				args.forEach(arg -> visitGlobalNames(arg, globalNames));
+			}
+			case Literal _, Identifier _ -> {}
+		}
+	}
+
+	// find the functions that can be compiled, by name
+	static HashMap<String, Fun> compilableFunctions(Block script) {
+		var globalNames = new GlobalNames(new HashMap<>(), new HashSet<>());
+		visitGlobalNames(script, globalNames);
+		for (var builtinName : BUILTIN_NAMES) {
+			if (globalNames.declarations.containsKey(builtinName) || !globalNames.isStable(builtinName)) {
+				// a builtin is redefined, no function is compiled
+				return new HashMap<>();
+			}
+		}
+
+		// the candidates are the functions declared at top level
+		var functions = new HashMap<String, Fun>();
+		for (var expr : script.exprs()) {
+			if (expr instanceof Fun fun && fun.toplevel() && globalNames.isStable(fun.name())) {
+				functions.put(fun.name(), fun);
+			}
+		}
+		// remove the functions that can not be compiled until nothing changes,
+		// because a function that calls a removed function can not be compiled
+		boolean changed;
+		do {
+			changed = functions.values().removeIf(fun -> !isCompilable(fun, functions));
+		} while (changed);
+		return functions;
+	}
+
+	private static boolean isCompilable(Fun fun, HashMap<String, Fun> functions) {
+		var locals = new HashSet<String>();
+		locals.add("this");
+		locals.addAll(fun.parameters());
+		visitLocals(fun.body(), locals);
+		return isCompilable(fun.body(), locals, functions);
+	}
+
+	// same algorithm as InstrRewriter.visitVariable
+	private static void visitLocals(Expr expression, Set<String> locals) {
+		switch (expression) {
+			case Block(List<Expr> exprs, _) -> exprs.forEach(expr -> visitLocals(expr, locals));
+			case VarAssignment(String name, _, boolean declaration, _) -> {
+				if (declaration) {
+					locals.add(name);
+				}
+			}
+			case If(_, Block trueBlock, Block falseBlock, _) -> {
+				visitLocals(trueBlock, locals);
+				visitLocals(falseBlock, locals);
+			}
+			default -> {}
+		}
+	}
+
+	private static boolean isCompilable(Expr expression, Set<String> locals, HashMap<String, Fun> functions) {
+		return switch (expression) {
+			case Block(List<Expr> exprs, _) -> exprs.stream().allMatch(expr -> isCompilable(expr, locals, functions));
+			case Literal _ -> true;
+			case Identifier(String name, _) -> locals.contains(name);
+			case If(Expr condition, Block trueBlock, Block falseBlock, _) ->
+					isCompilable(condition, locals, functions)
+							&& isCompilable(trueBlock, locals, functions)
+							&& isCompilable(falseBlock, locals, functions);
+			case Return(Expr expr, _) ->
+					// a tail call to a function must reuse the stack frame
+					!(expr instanceof Call(Identifier(String name, _), _, _) && functions.containsKey(name) && !locals.contains(name))
+							&& isCompilable(expr, locals, functions);
+			case VarAssignment(String name, Expr expr, _, _) -> locals.contains(name) && isCompilable(expr, locals, functions);
+			case Call(Identifier(String name, _), List<Expr> args, _) when !locals.contains(name) ->
+					isCompilableCall(name, args.size(), functions)
+							&& args.stream().allMatch(arg -> isCompilable(arg, locals, functions));
+			default -> false;
+		};
+	}
+
+	private static boolean isCompilableCall(String name, int argumentCount, HashMap<String, Fun> functions) {
+		if (name.equals("print")) {  // a side effect
+			return false;
+		}
+		if (BUILTIN_NAMES.contains(name)) {  // an operator
+			return argumentCount == 2;
+		}
+		var callee = functions.get(name);
+		return callee != null && callee.parameters().size() == argumentCount;
+	}
+}
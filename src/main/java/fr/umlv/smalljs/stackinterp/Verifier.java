@@ -0,0 +1,275 @@
+package fr.umlv.smalljs.stackinterp;
+
+import static fr.umlv.smalljs.stackinterp.Instructions.ADD;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST_RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST_STORE;
+import static fr.umlv.smalljs.stackinterp.Instructions.DIV;
+import static fr.umlv.smalljs.stackinterp.Instructions.DUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.EQ;
+import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
+import static fr.umlv.smalljs.stackinterp.Instructions.GE;
+import static fr.umlv.smalljs.stackinterp.Instructions.GET;
+import static fr.umlv.smalljs.stackinterp.Instructions.GET_CACHED;
+import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
+import static fr.umlv.smalljs.stackinterp.Instructions.GT;
+import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
+import static fr.umlv.smalljs.stackinterp.Instructions.LE;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_GET;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP_CELL;
+import static fr.umlv.smalljs.stackinterp.Instructions.LT;
+import static fr.umlv.smalljs.stackinterp.Instructions.MOD;
+import static fr.umlv.smalljs.stackinterp.Instructions.MUL;
+import static fr.umlv.smalljs.stackinterp.Instructions.NE;
+import static fr.umlv.smalljs.stackinterp.Instructions.NEW;
+import static fr.umlv.smalljs.stackinterp.Instructions.POP;
+import static fr.umlv.smalljs.stackinterp.Instructions.PRINT;
+import static fr.umlv.smalljs.stackinterp.Instructions.PUT;
+import static fr.umlv.smalljs.stackinterp.Instructions.PUT_CACHED;
+import static fr.umlv.smalljs.stackinterp.Instructions.REGISTER;
+import static fr.umlv.smalljs.stackinterp.Instructions.REGISTER_CELL;
+import static fr.umlv.smalljs.stackinterp.Instructions.RET;
+import static fr.umlv.smalljs.stackinterp.Instructions.STORE;
+import static fr.umlv.smalljs.stackinterp.Instructions.SUB;
+import static fr.umlv.smalljs.stackinterp.Instructions.SWAP;
+import static fr.umlv.smalljs.stackinterp.Instructions.TAILCALL;
+import static fr.umlv.smalljs.stackinterp.TagValues.decodeDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.isDictObject;
+import static fr.umlv.smalljs.stackinterp.TagValues.isSmallInt;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import fr.umlv.smalljs.rt.JSObject;
+
+// Verifies the instructions of a Code and computes the maximum height of its operand stack.
+//
+// The verifier does an abstract interpretation of the height of the operand stack,
+// starting with an empty stack at pc 0 and following all the paths (the jumps and the two paths
+// of an intrinsic), the height must be the same when two paths join.
+// The code is rejected if an instruction is unknown or truncated, if an operand is not valid
+// (a slot, a constant, a cell or a label), if the stack underflows, or if the code can fall off the end.
+final class Verifier {
+	private final Code code;
+	private final Dictionary dict;
+	private final int[] heights;  // height of the stack before each instruction or -1
+	private int[] pending = new int[16];
+	private int pendingCount;
+
+	private Verifier(Code code, Dictionary dict) {
+		this.code = code;
+		this.dict = dict;
+		this.heights = new int[code.instrs().length];
+		Arrays.fill(heights, -1);
+	}
+
+	private static IllegalArgumentException error(int pc, String message) {
+		return new IllegalArgumentException("invalid code at " + pc + ": " + message);
+	}
+
+	// verify the code, return the maximum height of the operand stack
+	static int verify(Code code, Dictionary dict) {
+		return new Verifier(code, dict).verify();
+	}
+
+	private int verify() {
+		var instrs = code.instrs();
+
+		// find the start of the instructions
+		var starts = new BitSet();
+		for (var pc = 0; pc < instrs.length;) {
+			starts.set(pc);
+			var size = Instructions.sizeOrZero(instrs[pc]);
+			if (size == 0) {
+				throw error(pc, "unknown instruction " + instrs[pc]);
+			}
+			if (pc + size > instrs.length) {
+				throw error(pc, "truncated instruction");
+			}
+			pc += size;
+		}
+
+		// propagate the height of the operand stack along all the paths
+		var maxStack = 0;
+		propagate(-1, 0, 0);
+		while (pendingCount != 0) {
+			var pc = pending[--pendingCount];
+			var height = heights[pc];
+			var instr = instrs[pc];
+			var next = pc + Instructions.size(instr);
+
+			// the number of values popped and pushed
+			int pops, pushes;
+			switch (instr) {
+				case CONST, CONST_RET -> {
+					checkConstant(pc, instrs[pc + 1]);
+					pops = 0;
+					pushes = (instr == CONST) ? 1 : 0;
+				}
+				case LOOKUP, REGISTER -> {
+					checkConstant(pc, instrs[pc + 1], String.class);
+					pops = (instr == REGISTER) ? 1 : 0;
+					pushes = (instr == LOOKUP) ? 1 : 0;
+				}
+				case LOAD, STORE -> {
+					checkSlot(pc, instrs[pc + 1]);
+					pops = (instr == STORE) ? 1 : 0;
+					pushes = (instr == LOAD) ? 1 : 0;
+				}
+				case LOAD_LOAD -> {
+					checkSlot(pc, instrs[pc + 1]);
+					checkSlot(pc, instrs[pc + 2]);
+					pops = 0;
+					pushes = 2;
+				}
+				case LOAD_CONST -> {
+					checkSlot(pc, instrs[pc + 1]);
+					checkConstant(pc, instrs[pc + 2]);
+					pops = 0;
+					pushes = 2;
+				}
+				case CONST_STORE -> {
+					checkConstant(pc, instrs[pc + 1]);
+					checkSlot(pc, instrs[pc + 2]);
+					pops = 0;
+					pushes = 0;
+				}
+				case LOAD_GET -> {
+					checkSlot(pc, instrs[pc + 1]);
+					checkConstant(pc, instrs[pc + 2], String.class);
+					pops = 0;
+					pushes = 1;
+				}
+				case LOOKUP_CELL, REGISTER_CELL -> {
+					var cell = instrs[pc + 1];
+					if (cell < 0 || cell >= dict.cellCount()) {
+						throw error(pc, "invalid cell " + cell);
+					}
+					pops = (instr == REGISTER_CELL) ? 1 : 0;
+					pushes = (instr == LOOKUP_CELL) ? 1 : 0;
+				}
+				case DUP -> { pops = 1; pushes = 2; }
+				case POP -> { pops = 1; pushes = 0; }
+				case SWAP -> { pops = 2; pushes = 2; }
+				case PRINT -> { pops = 1; pushes = 1; }
+				case RET -> { pops = 1; pushes = 0; }
+				case FUNCALL, TAILCALL -> {
+					var argumentCount = instrs[pc + 1];
+					if (argumentCount < 0) {
+						throw error(pc, "invalid argument count " + argumentCount);
+					}
+					if (instr == TAILCALL && (next == instrs.length || instrs[next] != RET)) {
+						throw error(pc, "TAILCALL not followed by a RET");
+					}
+					// the qualifier, the receiver and the arguments
+					pops = argumentCount + 2;
+					pushes = 1;
+				}
+				case GOTO -> { pops = 0; pushes = 0; }
+				case JUMP_IF_FALSE -> { pops = 1; pushes = 0; }
+				case NEW -> {
+					var clazz = (JSObject) checkConstant(pc, instrs[pc + 1], JSObject.class);
+					pops = clazz.length();
+					pushes = 1;
+				}
+				case GET, GET_CACHED -> {
+					checkConstant(pc, instrs[pc + 1], String.class);
+					pops = 1;
+					pushes = 1;
+				}
+				case PUT, PUT_CACHED -> {
+					checkConstant(pc, instrs[pc + 1], String.class);
+					pops = 2;
+					pushes = 0;
+				}
+				case ADD, SUB, MUL, DIV, MOD, EQ, NE, LT, LE, GT, GE -> {
+					if (next + 1 >= instrs.length || instrs[next] != FUNCALL || instrs[next + 1] != 2) {
+						throw error(pc, "intrinsic not followed by a FUNCALL 2");
+					}
+					// the slow path pushes the operator and the receiver below the two arguments
+					// and executes the FUNCALL 2
+					pops = 2;
+					pushes = 4;
+				}
+				default -> throw new AssertionError();
+			}
+			if (height < pops) {
+				throw error(pc, "stack underflow");
+			}
+			var newHeight = height - pops + pushes;
+			maxStack = Math.max(maxStack, newHeight);
+
+			// propagate the height to the successors
+			switch (instr) {
+				case RET, CONST_RET -> {}
+				case GOTO -> propagate(pc, checkLabel(pc, instrs[pc + 1], starts), newHeight);
+				case JUMP_IF_FALSE -> {
+					propagate(pc, checkLabel(pc, instrs[pc + 1], starts), newHeight);
+					propagate(pc, next, newHeight);
+				}
+				case ADD, SUB, MUL, DIV, MOD, EQ, NE, LT, LE, GT, GE -> {
+					// the fast path replaces the two arguments by the result and skips the FUNCALL 2
+					propagate(pc, next + 2, height - 1);
+					propagate(pc, next, newHeight);
+				}
+				default -> propagate(pc, next, newHeight);
+			}
+		}
+		return maxStack;
+	}
+
+	// record the height of the stack before the instruction at pc, the instruction
+	// is verified if it was not already, fromPc is the instruction before or -1
+	private void propagate(int fromPc, int pc, int height) {
+		if (pc == heights.length) {
+			throw error(fromPc, "fall off the end of the code");
+		}
+		var current = heights[pc];
+		if (current != -1) {
+			if (current != height) {
+				throw error(fromPc, "inconsistent stack height at " + pc + ", " + current + " != " + height);
+			}
+			return;
+		}
+		heights[pc] = height;
+		if (pendingCount == pending.length) {
+			pending = Arrays.copyOf(pending, pendingCount << 1);
+		}
+		pending[pendingCount++] = pc;
+	}
+
+	private void checkSlot(int pc, int slot) {
+		if (slot < 0 || slot >= code.slotCount()) {
+			throw error(pc, "invalid slot " + slot);
+		}
+	}
+
+	private static int checkLabel(int pc, int label, BitSet starts) {
+		if (label < 0 || !starts.get(label)) {
+			throw error(pc, "invalid label " + label);
+		}
+		return label;
+	}
+
+	// a constant is a small int or an object of the dictionary
+	private void checkConstant(int pc, int tagValue) {
+		if (!isSmallInt(tagValue)) {
+			checkConstant(pc, tagValue, Object.class);
+		}
+	}
+
+	private Object checkConstant(int pc, int tagValue, Class<?> type) {
+		if (!isDictObject(tagValue) || (tagValue >>> 3) >= dict.constantCount()) {
+			throw error(pc, "invalid constant " + tagValue);
+		}
+		var constant = decodeDictObject(tagValue, dict);
+		if (!type.isInstance(constant)) {
+			throw error(pc, "invalid constant " + constant + ", not a " + type.getSimpleName());
+		}
+		return constant;
+	}
+}
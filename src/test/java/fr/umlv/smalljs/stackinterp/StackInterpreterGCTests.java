@@ -18,6 +18,9 @@ import static fr.umlv.smalljs.stackinterp.TagValues.encodeDictObject;
 import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import fr.umlv.smalljs.rt.JSObject;
 import java.io.ByteArrayOutputStream;
@@ -33,15 +36,17 @@ public class StackInterpreterGCTests {
     return fun;
   }
   private static String execute(Code mainCode, Dictionary dict) {
+    return execute(mainCode, dict, ExecutionConfig.DEFAULT.withHeapSizes(32, 96), new ExecutionStats());
+  }
+  private static String execute(Code mainCode, Dictionary dict, ExecutionConfig config, ExecutionStats stats) {
     var outStream = new ByteArrayOutputStream(8192);
     var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, UTF_8));
     var mainFun = newMainFunction(mainCode);
     globalEnv.register("main", mainFun);
-    StackInterpreter.execute(mainFun, dict, globalEnv);
+    StackInterpreter.execute(mainFun, dict, globalEnv, config, stats);
     return outStream.toString(UTF_8).replace("\r\n", "\n");
   }
 
-	/*
 	@Nested
 	public class Q2 {
 		@Test
@@ -80,9 +85,9 @@ public class StackInterpreterGCTests {
 
 	@Nested
 	public class Q3 {
-		@Test
-		public void gcTestRewriteField() {
-			var dict = new Dictionary();
+		// a loop that allocates garbage and rewrites a field of a live object,
+		// shared by the tests of the collectors (see Q7)
+		private static Code rewriteFieldLoop(Dictionary dict) {
 			var clazz = JSObject.newObject(null);
 			clazz.register("field", 0);
 			int[] instrs = {
@@ -126,7 +131,13 @@ public class StackInterpreterGCTests {
 					CONST, encodeDictObject(UNDEFINED, dict),  // 53
 					RET                                               // 55
 			};
-			assertEquals("84\n", execute(new Code(instrs, 1, 3), dict));
+			return new Code(instrs, 1, 3);
+		}
+
+		@Test
+		public void gcTestRewriteField() {
+			var dict = new Dictionary();
+			assertEquals("84\n", execute(rewriteFieldLoop(dict), dict));
 		}
 	}
 
@@ -216,5 +227,265 @@ public class StackInterpreterGCTests {
 			execute(new Code(instrs, 1, 4), dict);
 		}
 	}
-	*/
+
+	@Nested
+	public class Q6 {
+		@Test
+		public void gcTestGenerational() {
+			var dict = new Dictionary();
+			var linkClass = JSObject.newObject(null);
+			linkClass.register("value", 0);
+			linkClass.register("next", 1);
+			int[] instrs = {
+					CONST, encodeSmallInt(1),                   //  0
+					CONST, encodeDictObject(UNDEFINED, dict),  //  2
+					NEW, encodeDictObject(linkClass, dict),    //  4
+					STORE, 2, // long lived object                    //  6
+
+					CONST, encodeSmallInt(100),                 //  8
+					STORE, 1,                                         // 10
+
+					LOAD, 1,                                          // 12
+					JUMP_IF_FALSE, 40,                                // 14
+
+					LOAD, 2,                                          // 16
+					LOAD, 1,                                          // 18
+					CONST, encodeDictObject(UNDEFINED, dict),  // 20
+					NEW, encodeDictObject(linkClass, dict),    // 22
+					PUT, encodeDictObject("next", dict),       // 24
+
+					LOOKUP, encodeDictObject("-", dict),       // 26
+					CONST, encodeDictObject(UNDEFINED, dict),  // 28
+					LOAD, 1,                                          // 30
+					CONST, encodeSmallInt(1),                   // 32
+					FUNCALL, 2,                                       // 34
+					STORE, 1,                                         // 36
+
+					GOTO, 12,                                         // 38
+
+					LOAD, 2,                                          // 40
+					GET, encodeDictObject("next", dict),       // 42
+					GET, encodeDictObject("value", dict),      // 44
+					PRINT,                                            // 46
+
+					CONST, encodeDictObject(UNDEFINED, dict),  // 47
+					RET                                               // 49
+			};
+			var stats = new ExecutionStats();
+			assertEquals("1\n", execute(new Code(instrs, 1, 3), dict, ExecutionConfig.DEFAULT.withHeapSizes(32, 96), stats));
+			assertTrue(stats.minorCollections() > 0);
+		}
+	}
+
+	@Nested
+	public class Q7 {
+		@Test
+		public void gcTestIncremental() {
+			var dict = new Dictionary();
+			var stats = new ExecutionStats();
+			var config = ExecutionConfig.DEFAULT.withHeapSizes(32, 96).withCollector(ExecutionConfig.Collector.INCREMENTAL);
+			assertEquals("84\n", execute(Q3.rewriteFieldLoop(dict), dict, config, stats));
+			assertTrue(stats.incrementalCycles() > 0);
+		}
+	}
+
+	@Nested
+	public class Q8 {
+		private static Code handleLoop(Dictionary dict) {
+			// var i = 10000; while(i) { 0 - 1; i = i - 1; } print(i);
+			int[] instrs = {
+					CONST, encodeSmallInt(10_000),              // 0
+					STORE, 1,                                         // 2
+
+					LOAD, 1,                                          // 4
+					JUMP_IF_FALSE, 33,                                // 6
+
+					LOOKUP, encodeDictObject("-", dict),       // 8
+					CONST, encodeDictObject(UNDEFINED, dict),  // 10
+					CONST, encodeSmallInt(0),                   // 12
+					CONST, encodeSmallInt(1),                   // 14
+					FUNCALL, 2,  // 0 - 1, the operator is a handle   // 16
+					POP,                                              // 18
+
+					LOOKUP, encodeDictObject("-", dict),       // 19
+					CONST, encodeDictObject(UNDEFINED, dict),  // 21
+					LOAD, 1,                                          // 23
+					CONST, encodeSmallInt(1),                   // 25
+					FUNCALL, 2,                                       // 27
+					STORE, 1,                                         // 29
+
+					GOTO, 4,                                          // 31
+
+					LOAD, 1,                                          // 33
+					PRINT,                                            // 35
+					RET                                               // 36
+			};
+			return new Code(instrs, 1, 2);
+		}
+
+		@Test
+		public void handlesAreReclaimedGenerational() {
+			var dict = new Dictionary();
+			var stats = new ExecutionStats();
+			assertEquals("0\n", execute(handleLoop(dict), dict, ExecutionConfig.DEFAULT, stats));
+			assertTrue(stats.handleTableSize() <= 128);
+			assertTrue(stats.majorCollections() > 0);
+		}
+
+		@Test
+		public void handlesAreReclaimedIncremental() {
+			var dict = new Dictionary();
+			var stats = new ExecutionStats();
+			var config = ExecutionConfig.DEFAULT.withCollector(ExecutionConfig.Collector.INCREMENTAL);
+			assertEquals("0\n", execute(handleLoop(dict), dict, config, stats));
+			assertTrue(stats.handleTableSize() <= 128);
+			assertTrue(stats.incrementalCycles() > 0);
+		}
+	}
+	@Nested
+	public class Q9 {
+		private static Code keepLoop(Dictionary dict, JSObject pointClass) {
+			// keep({ x: 1, y: 2 }); var i = 100; while(i) { ({ x: 3, y: 4 }); i = i - 1; }
+			int[] instrs = {
+					LOOKUP, encodeDictObject("keep", dict),    //  0
+					CONST, encodeDictObject(UNDEFINED, dict),  //  2
+					CONST, encodeSmallInt(1),                   //  4
+					CONST, encodeSmallInt(2),                   //  6
+					NEW, encodeDictObject(pointClass, dict),   //  8
+					FUNCALL, 1,                                       // 10
+					POP,                                              // 12
+
+					CONST, encodeSmallInt(100),                 // 13
+					STORE, 1,                                         // 15
+
+					LOAD, 1,                                          // 17
+					JUMP_IF_FALSE, 42,                                // 19
+
+					CONST, encodeSmallInt(3),                   // 21
+					CONST, encodeSmallInt(4),                   // 23
+					NEW, encodeDictObject(pointClass, dict),   // 25
+					POP,                                              // 27
+
+					LOOKUP, encodeDictObject("-", dict),       // 28
+					CONST, encodeDictObject(UNDEFINED, dict),  // 30
+					LOAD, 1,                                          // 32
+					CONST, encodeSmallInt(1),                   // 34
+					FUNCALL, 2,                                       // 36
+					STORE, 1,                                         // 38
+
+					GOTO, 17,                                         // 40
+
+					CONST, encodeDictObject(UNDEFINED, dict),  // 42
+					RET                                               // 44
+			};
+			return new Code(instrs, 1, 2);
+		}
+
+		private static JSObject executeAndKeep(ExecutionConfig config, ExecutionStats stats) {
+			var dict = new Dictionary();
+			var pointClass = JSObject.newObject(null);
+			pointClass.register("x", 0);
+			pointClass.register("y", 1);
+			var kept = new JSObject[1];
+			var mainFun = newMainFunction(keepLoop(dict, pointClass));
+			var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(new ByteArrayOutputStream(), false, UTF_8));
+			globalEnv.register("keep", JSObject.newFunction("keep", (_, args) -> {
+				kept[0] = (JSObject) args[0];
+				return UNDEFINED;
+			}));
+			StackInterpreter.execute(mainFun, dict, globalEnv, config, stats);
+			return kept[0];
+		}
+
+		@Test
+		public void objectViewSurvivesAMovingCollection() {
+			var stats = new ExecutionStats();
+			var kept = executeAndKeep(ExecutionConfig.DEFAULT.withHeapSizes(32, 96), stats);
+			assertTrue(stats.minorCollections() > 0 && stats.majorCollections() > 0);
+			assertEquals(1, kept.lookupOrDefault("x", null));
+			assertEquals(2, kept.lookupOrDefault("y", null));
+		}
+
+		@Test
+		public void objectViewSurvivesAnIncrementalCollection() {
+			var stats = new ExecutionStats();
+			var config = ExecutionConfig.DEFAULT.withHeapSizes(32, 96).withCollector(ExecutionConfig.Collector.INCREMENTAL);
+			var kept = executeAndKeep(config, stats);
+			assertTrue(stats.incrementalCycles() > 0);
+			assertEquals(1, kept.lookupOrDefault("x", null));
+			assertEquals(2, kept.lookupOrDefault("y", null));
+		}
+	}
+
+	@Nested
+	public class Q10 {
+		@Test
+		public void offHeapGenerational() {
+			var dict = new Dictionary();
+			var stats = new ExecutionStats();
+			var config = ExecutionConfig.DEFAULT.withHeapSizes(32, 96).withStorage(ExecutionConfig.Storage.OFF_HEAP);
+			assertEquals("0\n", execute(Q8.handleLoop(dict), dict, config, stats));
+			assertTrue(stats.majorCollections() > 0);
+		}
+
+		@Test
+		public void offHeapIncremental() {
+			var dict = new Dictionary();
+			var stats = new ExecutionStats();
+			var config = ExecutionConfig.DEFAULT.withHeapSizes(32, 96)
+					.withCollector(ExecutionConfig.Collector.INCREMENTAL)
+					.withStorage(ExecutionConfig.Storage.OFF_HEAP);
+			assertEquals("0\n", execute(Q8.handleLoop(dict), dict, config, stats));
+			assertTrue(stats.incrementalCycles() > 0);
+		}
+
+		@Test
+		public void offHeapObjectViewIsValidAfterTheExecution() {
+			var stats = new ExecutionStats();
+			var config = ExecutionConfig.DEFAULT.withHeapSizes(32, 96).withStorage(ExecutionConfig.Storage.OFF_HEAP);
+			var kept = Q9.executeAndKeep(config, stats);
+			assertTrue(stats.minorCollections() > 0);
+			assertEquals(1, kept.lookupOrDefault("x", null));
+			assertEquals(2, kept.lookupOrDefault("y", null));
+		}
+
+		@Test
+		public void offHeapReturnedObjectIsValidAfterTheExecution() {
+			// var a = { value: 1, next: undefined }; var b = { value: 2, next: a }; a.next = b; return b;
+			var dict = new Dictionary();
+			var linkClass = JSObject.newObject(null);
+			linkClass.register("value", 0);
+			linkClass.register("next", 1);
+			int[] instrs = {
+					CONST, encodeSmallInt(1),
+					CONST, encodeDictObject(UNDEFINED, dict),
+					NEW, encodeDictObject(linkClass, dict),
+					STORE, 1,
+					CONST, encodeSmallInt(2),
+					LOAD, 1,
+					NEW, encodeDictObject(linkClass, dict),
+					STORE, 2,
+					LOAD, 1,
+					LOAD, 2,
+					PUT, encodeDictObject("next", dict),
+					LOAD, 2,
+					RET
+			};
+			var mainFun = newMainFunction(new Code(instrs, 1, 3));
+			var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(new ByteArrayOutputStream(), false, UTF_8));
+			var config = ExecutionConfig.DEFAULT.withStorage(ExecutionConfig.Storage.OFF_HEAP);
+			var b = (JSObject) StackInterpreter.execute(mainFun, dict, globalEnv, config, new ExecutionStats());
+			assertEquals(2, b.lookupOrDefault("value", null));
+			var a = (JSObject) b.lookupOrDefault("next", null);
+			assertEquals(1, a.lookupOrDefault("value", null));
+			assertSame(b, a.lookupOrDefault("next", null));
+		}
+
+		@Test
+		public void heapTooLarge() {
+			var dict = new Dictionary();
+			var config = ExecutionConfig.DEFAULT.withHeapSizes(1 << 20, 1 << 29);
+			assertThrows(IllegalArgumentException.class, () -> execute(Q8.handleLoop(dict), dict, config, new ExecutionStats()));
+		}
+	}
 }
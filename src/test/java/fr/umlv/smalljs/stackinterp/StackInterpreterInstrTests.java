@@ -1,14 +1,18 @@
 package fr.umlv.smalljs.stackinterp;
 
 import static fr.umlv.smalljs.rt.JSObject.UNDEFINED;
+import static fr.umlv.smalljs.stackinterp.Instructions.ADD;
 import static fr.umlv.smalljs.stackinterp.Instructions.CONST;
+import static fr.umlv.smalljs.stackinterp.Instructions.CONST_RET;
 import static fr.umlv.smalljs.stackinterp.Instructions.DUP;
 import static fr.umlv.smalljs.stackinterp.Instructions.FUNCALL;
 import static fr.umlv.smalljs.stackinterp.Instructions.GET;
 import static fr.umlv.smalljs.stackinterp.Instructions.GOTO;
 import static fr.umlv.smalljs.stackinterp.Instructions.JUMP_IF_FALSE;
 import static fr.umlv.smalljs.stackinterp.Instructions.LOAD;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOAD_GET;
 import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP;
+import static fr.umlv.smalljs.stackinterp.Instructions.LOOKUP_CELL;
 import static fr.umlv.smalljs.stackinterp.Instructions.NEW;
 import static fr.umlv.smalljs.stackinterp.Instructions.POP;
 import static fr.umlv.smalljs.stackinterp.Instructions.PRINT;
@@ -22,11 +26,14 @@ import static fr.umlv.smalljs.stackinterp.TagValues.encodeSmallInt;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import fr.umlv.smalljs.rt.Failure;
 import fr.umlv.smalljs.rt.JSObject;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
@@ -209,6 +216,58 @@ public class StackInterpreterInstrTests {
 			};
 			assertEquals("1\n", execute(new Code(instrs, 1, 1), dict));
 		}
+
+		@Test
+		public void printGlobalCells() {
+			// foo = "hello"; print(foo); foo = "world"; print(foo)
+			var dict = new Dictionary();
+			var foo = dict.cellIndex("foo");
+			int[] instrs = {
+					CONST, encodeDictObject("hello", dict),
+					REGISTER, encodeDictObject("foo", dict),
+					LOOKUP_CELL, foo,
+					PRINT,
+					POP,
+					CONST, encodeDictObject("world", dict),
+					REGISTER, encodeDictObject("foo", dict),
+					LOOKUP_CELL, foo,
+					PRINT,
+					RET
+			};
+			assertEquals("hello\nworld\n", execute(new Code(instrs, 1, 1), dict));
+		}
+
+		@Test
+		public void printIntrinsicAdd() {
+			// print(3 + 2)
+			var dict = new Dictionary();
+			int[] instrs = {
+					CONST, encodeSmallInt(3),
+					CONST, encodeSmallInt(2),
+					ADD,
+					FUNCALL, 2,
+					PRINT,
+					RET
+			};
+			assertEquals("5\n", execute(new Code(instrs, 1, 1), dict));
+		}
+
+		@Test
+		public void printIntrinsicAddRedefined() {
+			// + = (a, b) -> a * b; print(3 + 2)
+			var dict = new Dictionary();
+			int[] instrs = {
+					CONST, encodeDictObject(JSObject.newFunction("+", (_, args) -> (Integer) args[0] * (Integer) args[1]), dict),
+					REGISTER, encodeDictObject("+", dict),
+					CONST, encodeSmallInt(3),
+					CONST, encodeSmallInt(2),
+					ADD,
+					FUNCALL, 2,
+					PRINT,
+					RET
+			};
+			assertEquals("6\n", execute(new Code(instrs, 1, 1), dict));
+		}
 	}
 
 	@Nested
@@ -1169,6 +1228,210 @@ public class StackInterpreterInstrTests {
 					execute(new Code(instrs, 1, 2), dict));
 		}
 	}
+
+	@Nested
+	public class Verification {
+		@Test
+		public void maxStackOfACall() {
+			// print(1 + 2)
+			var dict = new Dictionary();
+			int[] instrs = {
+					LOOKUP_CELL, dict.cellIndex("print"),
+					CONST, encodeDictObject(UNDEFINED, dict),
+					CONST, encodeSmallInt(1),
+					CONST, encodeSmallInt(2),
+					ADD,
+					FUNCALL, 2,  // the slow path of ADD pushes 2 values
+					FUNCALL, 1,
+					RET
+			};
+			assertEquals(6, Verifier.verify(new Code(instrs, 1, 1), dict));
+		}
+
+		@Test
+		public void maxStackOfAnIf() {
+			// var a = 1; if (a) { a = 2 } else { a = 3 } return a;
+			var dict = new Dictionary();
+			int[] instrs = {
+					CONST, encodeSmallInt(1),  //  0
+					STORE, 1,                        //  2
+					LOAD, 1,                         //  4
+					JUMP_IF_FALSE, 16,               //  6
+					CONST, encodeSmallInt(2),  //  8
+					STORE, 1,                        // 10
+					GOTO, 20,                        // 12
+					POP,                             // 14, dead code
+					POP,                             // 15, dead code
+					CONST, encodeSmallInt(3),  // 16
+					STORE, 1,                        // 18
+					LOAD, 1,                         // 20
+					RET                              // 22
+			};
+			assertEquals(1, Verifier.verify(new Code(instrs, 1, 2), dict));
+		}
+
+		@Test
+		public void rejectStackUnderflow() {
+			var dict = new Dictionary();
+			int[] instrs = {
+					POP,
+					CONST, encodeSmallInt(1),
+					RET
+			};
+			assertThrows(IllegalArgumentException.class, () -> Verifier.verify(new Code(instrs, 1, 1), dict));
+		}
+
+		@Test
+		public void rejectInconsistentStackHeights() {
+			var dict = new Dictionary();
+			int[] instrs = {
+					CONST, encodeSmallInt(1),  // 0
+					JUMP_IF_FALSE, 6,                // 2
+					CONST, encodeSmallInt(2),  // 4
+					CONST, encodeSmallInt(3),  // 6
+					RET                              // 8
+			};
+			assertThrows(IllegalArgumentException.class, () -> Verifier.verify(new Code(instrs, 1, 1), dict));
+		}
+
+		@Test
+		public void rejectInvalidOperands() {
+			var dict = new Dictionary();
+			int[] badSlot = { LOAD, 1, RET };
+			assertThrows(IllegalArgumentException.class, () -> Verifier.verify(new Code(badSlot, 1, 1), dict));
+			int[] badLabel = { GOTO, 1, CONST, encodeSmallInt(1), RET };
+			assertThrows(IllegalArgumentException.class, () -> Verifier.verify(new Code(badLabel, 1, 1), dict));
+			int[] badConstant = { CONST, encodeDictObject("foo", dict) + (1 << 3), RET };
+			assertThrows(IllegalArgumentException.class, () -> Verifier.verify(new Code(badConstant, 1, 1), dict));
+			int[] truncated = { CONST };
+			assertThrows(IllegalArgumentException.class, () -> Verifier.verify(new Code(truncated, 1, 1), dict));
+		}
+
+		@Test
+		public void rejectFallOffTheEnd() {
+			var dict = new Dictionary();
+			int[] instrs = {
+					CONST, encodeSmallInt(1),
+					POP
+			};
+			assertThrows(IllegalArgumentException.class, () -> Verifier.verify(new Code(instrs, 1, 1), dict));
+		}
+
+		@Test
+		public void executeRejectsAnInvalidCode() {
+			var dict = new Dictionary();
+			int[] instrs = {
+					CONST, encodeSmallInt(1),
+					PRINT
+			};
+			assertThrows(IllegalArgumentException.class, () -> execute(new Code(instrs, 1, 1), dict));
+		}
+	}
+
+	@Nested
+	public class Profiling {
+		@Test
+		public void countInstructionsFunctionsAndCallSites() {
+			var dict = new Dictionary();
+			var code = new Code(new int[] { CONST, encodeSmallInt(1), FUNCALL, 0, RET }, 1, 1);
+			var functionTag = encodeDictObject(newFunction("foo", code), dict);
+			var heap = Heap.create(ExecutionConfig.DEFAULT, dict, new ExecutionStats());
+			var state = new CodeState(code);
+			var profile = new ExecutionProfile();
+			profile.recordInvocation(state, functionTag, dict, heap);
+			profile.recordInvocation(state, functionTag, dict, heap);
+			profile.recordOpcode(CONST);
+			profile.recordOpcode(CONST);
+			profile.recordOpcode(RET);
+			profile.recordCall(state, 3, true);
+			profile.recordCall(state, 3, false);
+			profile.recordCall(state, 3, false);
+
+			assertEquals(2, (long) profile.opcodeHistogram().get("CONST"));
+			assertEquals(1, (long) profile.opcodeHistogram().get("RET"));
+			assertEquals(0, (long) profile.opcodeHistogram().get("FUNCALL"));
+			assertEquals(List.of(new ExecutionProfile.FunctionProfile("function foo", 2,
+					List.of(new ExecutionProfile.CallSiteProfile(3, -1, 1, 2)))), profile.functions());
+		}
+
+		@Test
+		public void aCodeIsProfiledAgainByAnotherExecution() {
+			var dict = new Dictionary();
+			var code = new Code(new int[] { CONST, encodeSmallInt(1), RET }, 1, 1);
+			var functionTag = encodeDictObject(newFunction("foo", code), dict);
+			var heap = Heap.create(ExecutionConfig.DEFAULT, dict, new ExecutionStats());
+			var profile1 = new ExecutionProfile();
+			profile1.recordInvocation(new CodeState(code), functionTag, dict, heap);
+			var profile2 = new ExecutionProfile();
+			profile2.recordInvocation(new CodeState(code), functionTag, dict, heap);
+
+			assertEquals(1, profile1.functions().getFirst().invocations());
+			assertEquals(1, profile2.functions().getFirst().invocations());
+		}
+
+		@Test
+		public void onlyAProfiledExecutionHasAProfile() {
+			var dict = new Dictionary();
+			var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(new ByteArrayOutputStream()));
+			var mainFun = newFunction("main", new Code(new int[] { CONST, encodeSmallInt(1), RET }, 1, 1));
+			var stats = new ExecutionStats();
+			StackInterpreter.execute(mainFun, dict, globalEnv, ExecutionConfig.DEFAULT, stats);
+			assertTrue(stats.profile().isEmpty());
+			assertEquals(0, stats.dispatches());
+
+			var profiledStats = new ExecutionStats();
+			StackInterpreter.execute(mainFun, dict, globalEnv, ExecutionConfig.DEFAULT.withProfile(true), profiledStats);
+			var profile = profiledStats.profile().orElseThrow();
+			assertEquals(1, (long) profile.opcodeHistogram().get("CONST"));
+			assertEquals(1, (long) profile.opcodeHistogram().get("RET"));
+			assertEquals(2, profiledStats.dispatches());
+		}
+	}
+
+	@Nested
+	public class LineTables {
+		@Test
+		public void lineNumberOfEachInstruction() {
+			var builder = new LineTable.Builder();
+			builder.add(0, 3);
+			builder.add(4, 3);     // same line, no entry
+			builder.add(6, 1000);  // several bytes per entry
+			builder.add(200, 2);   // line goes back
+			builder.add(200, 5);   // same pc, replaces the previous entry
+			var table = builder.toLineTable();
+			assertEquals(3, LineTable.lineNumber(table, 0));
+			assertEquals(3, LineTable.lineNumber(table, 5));
+			assertEquals(1000, LineTable.lineNumber(table, 6));
+			assertEquals(1000, LineTable.lineNumber(table, 199));
+			assertEquals(5, LineTable.lineNumber(table, 200));
+			assertEquals(5, LineTable.lineNumber(table, 10_000));
+		}
+
+		@Test
+		public void noLineNumber() {
+			var builder = new LineTable.Builder();
+			builder.add(2, 7);
+			var table = builder.toLineTable();
+			assertEquals(-1, LineTable.lineNumber(table, 1));
+			assertEquals(7, LineTable.lineNumber(table, 2));
+			assertEquals(-1, LineTable.lineNumber(LineTable.EMPTY, 0));
+			assertEquals(-1, new Code(new int[] { CONST, encodeSmallInt(1), RET }, 1, 1).lineNumber(0));
+		}
+
+		@Test
+		public void superinstructionsKeepTheLineNumbers() {
+			var instrs = new int[] {
+					LOAD, 0,             // line 1
+					GET, 42,             // line 2, fused with the LOAD
+					CONST, encodeSmallInt(1),  // line 3
+					RET                  // line 4, fused with the CONST
+			};
+			var pcs = new int[] { 0, 2, 4, 6 };
+			var optimized = Peephole.optimize(instrs, pcs);
+			assertEquals(List.of(LOAD_GET, 0, 42, CONST_RET, encodeSmallInt(1)), Arrays.stream(optimized).boxed().toList());
+			assertEquals(List.of(0, 0, 3, 3), Arrays.stream(pcs).boxed().toList());
+		}
+	}
   	/*
 
 	@Nested
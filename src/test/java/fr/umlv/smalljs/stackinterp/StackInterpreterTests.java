@@ -4,11 +4,22 @@ import static fr.umlv.smalljs.ast.ASTBuilder.createScript;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import fr.umlv.smalljs.rt.Failure;
+import fr.umlv.smalljs.rt.JSObject;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
@@ -20,6 +31,16 @@ public class StackInterpreterTests {
     return outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n");
   }
 
+  private static long dispatches(String code, boolean optimize) {
+    var script = createScript(code);
+    var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(OutputStream.nullOutputStream()));
+    var dict = new Dictionary();
+    var function = InstrRewriter.createFunction("main", List.of(), script.body(), dict, optimize);
+    var stats = new ExecutionStats();
+    StackInterpreter.execute(function, dict, globalEnv, ExecutionConfig.DEFAULT.withProfile(true), stats);
+    return stats.dispatches();
+  }
+
   @Nested
   public class Q2 {
     @Test
@@ -75,6 +96,46 @@ public class StackInterpreterTests {
       assertEquals("6\n", execute("print(3 * 2)\n"));
       assertEquals("1\n", execute("print(3 / 2)\n"));
     }
+
+    @Test
+    public void printOperationsOutsideTheSmallIntRange() {  // slow path of the intrinsics
+      assertEquals("-1\n", execute("print(2 - 3)\n"));
+      assertEquals("-2147483648\n", execute("print(2147483647 + 1)\n"));
+      assertEquals("-2\n", execute("print(1073741824 * 2 + 2147483646)\n"));
+    }
+
+    @Test
+    public void printNegativeSmallInts() {
+      assertEquals("-3\n6\n-2\n1\n1\n", execute("""
+              var a = 2 - 5;
+              print(a);
+              print(a * (0 - 2));
+              print((0 - 7) / 3);
+              print((0 - 7) % 3 == 0 - 1);
+              print(a < 1);
+              """));
+      assertEquals("-1073741824\n-1073741825\n1073741824\n1073741823\n", execute("""
+              var min = 0 - 1073741824;
+              print(min);
+              print(min - 1);
+              print(min / (0 - 1));
+              print(min + 1073741824 + 1073741823);
+              """));
+    }
+
+    @Test
+    public void printComparisons() {
+      assertEquals("1\n0\n1\n0\n", execute("""
+              print(2 < 3);
+              print(3 <= 2);
+              print(3 == 3);
+              print(3 != 3);
+              """));
+      assertEquals("1\n0\n", execute("""
+              print("a" == "a");
+              print("a" < "a");
+              """));
+    }
   }
 
   @Nested
@@ -208,6 +269,29 @@ public class StackInterpreterTests {
               """));
     }
 
+    @Test
+    public void callAGlobalFunctionRedefined() {  // global cells
+      assertEquals("1\n2\n", execute("""
+              function f() { return 1; }
+              print(f());
+              function f() { return 2; }
+              print(f());
+              """));
+    }
+
+    @Test
+    public void callSeveralFunctionsFromTheSameCallSite() {  // call site cache
+      assertEquals("1\n2\n1\n\nundefined\n", execute("""
+              function one() { return 1; }
+              function two() { return 2; }
+              function apply(f) { return f(); }
+              print(apply(one));
+              print(apply(two));
+              print(apply(one));
+              print(apply(print));
+              """));
+    }
+
     @Test
     public void callFunctionWithNoReturn() {
       assertEquals("undefined\n", execute("""
@@ -374,6 +458,33 @@ public class StackInterpreterTests {
               print(f());
               """));
     }
+
+    @Test
+    public void callFiboDeepRecursion() {
+      assertEquals("10946\n", execute("""
+              function fibo(n) {
+                  if (n < 2) {
+                    return 1
+                  } else {
+                    return fibo(n - 1) + fibo(n - 2)
+                  }
+                }
+
+              print(fibo(20))
+              """));
+    }
+
+    @Test
+    public void callInfiniteRecursionStackOverflow() {
+      var failure = assertThrows(Failure.class, () -> execute("""
+              function f() { return 1 + f(); }
+              f();
+              """));
+      var lines = failure.getMessage().lines().toList();
+      assertEquals("stack overflow", lines.getFirst());
+      assertEquals("  at function f (line 1)", lines.get(1));
+      assertEquals("  at function main (line 2)", lines.getLast());
+    }
   }
 
   @Nested
@@ -395,6 +506,25 @@ public class StackInterpreterTests {
                   print(o);
                   """));
     }
+
+    @Test
+    public void printANestedObject() {  // native print, the objects are not copied
+      assertEquals("""
+              { // object
+                o: { // object
+                x: 1
+                proto: null
+              }
+                proto: null
+              } 2 hello
+              """,
+          execute("""
+                  var p = {
+                      o: { x: 1 }
+                  };
+                  print(p, 2, "hello");
+                  """));
+    }
   }
 
   @Nested
@@ -451,6 +581,22 @@ public class StackInterpreterTests {
                   print(john.foo);
                   """));
     }
+
+    @Test
+    public void objectGetAFieldOfObjectsOfDifferentClasses() {  // inline cache miss
+      assertEquals(
+          "John\nJane\nundefined\nJohn\n",
+          execute("""
+                  function name(o) { return o.name; }
+                  var john = { name: "John" };
+                  var jane = { age: 32, name: "Jane" };
+                  var bob = { age: 40 };
+                  print(name(john));
+                  print(name(jane));
+                  print(name(bob));
+                  print(name(john));
+                  """));
+    }
   }
 
   @Nested
@@ -466,6 +612,22 @@ public class StackInterpreterTests {
                   """));
     }
 
+    @Test
+    public void objectSetAFieldToItself() {
+      assertEquals("""
+              { // object
+                x: 1
+                self: ... // object
+                proto: null
+              }
+              """,
+          execute("""
+                  var o = { x: 1, self: 0 };
+                  o.self = o;
+                  print(o);
+                  """));
+    }
+
     @Test
     public void objectGetAndSetAField() {
       assertEquals(
@@ -478,6 +640,852 @@ public class StackInterpreterTests {
                   print(f(obj));
                   """));
     }
+
+    @Test
+    public void objectSetAFieldOfObjectsOfDifferentClasses() {  // inline cache miss
+      assertEquals(
+          "1\n2\n",
+          execute("""
+                  function set(o, v) { o.x = v; return o.x; }
+                  var a = { x: 0 };
+                  var b = { y: 0, x: 0 };
+                  print(set(a, 1));
+                  print(set(b, 2));
+                  """));
+    }
+  }
+
+  @Nested
+  public class TailCalls {
+    @Test
+    public void tailRecursiveLoopInConstantStackSpace() {
+      assertEquals("1000000\n", execute("""
+              function loop(i, acc) {
+                if (i == 0) {
+                  return acc;
+                } else {
+                  return loop(i - 1, acc + 1);
+                }
+              }
+              print(loop(1000000, 0));
+              """));
+    }
+
+    @Test
+    public void mutuallyRecursiveTailCalls() {
+      assertEquals("0\n1\n", execute("""
+              function isEven(n) {
+                if (n == 0) {
+                  return 1;
+                } else {
+                  return isOdd(n - 1);
+                }
+              }
+              function isOdd(n) {
+                if (n == 0) {
+                  return 0;
+                } else {
+                  return isEven(n - 1);
+                }
+              }
+              print(isEven(1000001));
+              print(isOdd(1000001));
+              """));
+    }
+
+    @Test
+    public void tailCallOfFunctionsWithDifferentFrameSizes() {
+      assertEquals("8\n9\n", execute("""
+              function g(a) { var x = a + 1; var y = x + 1; return y; }
+              function f(a, b, c) { return g(a + b + c); }
+              function h(a, b, c) { var t = a + b; return t + c; }
+              function k(a) { return h(a, a, a); }
+              print(f(1, 2, 3));
+              print(k(3));
+              """));
+    }
+
+    @Test
+    public void tailCallOfANativeFunction() {
+      assertEquals("3\nundefined\n", execute("""
+              function f(x) { return print(x); }
+              print(f(3));
+              """));
+    }
+  }
+
+  @Nested
+  public class Superinstructions {
+    @Test
+    public void superinstructionsInAFunctionWithAnIf() {
+      assertEquals("1\n2\n", execute("""
+              function f(x) {
+                var r = 0;
+                if (x < 2) {
+                  r = 1;
+                } else {
+                  r = 2;
+                }
+                return r;
+              }
+              print(f(1));
+              print(f(3));
+              """));
+    }
+
+    @Test
+    public void samplesDispatchLessInstructions() throws IOException {
+      for (var sample : List.of("fibo.js", "fun.js", "if.js", "numeric.js", "var.js")) {
+        var code = Files.readString(Path.of("samples", sample));
+        var optimized = dispatches(code, true);
+        var unoptimized = dispatches(code, false);
+        assertTrue(optimized < unoptimized, sample + " " + optimized + " dispatches, without superinstructions " + unoptimized);
+      }
+    }
+
+    @Test
+    public void dispatchesAreOnlyCountedIfTheExecutionIsProfiled() {
+      var script = createScript("""
+          print(1);
+          """);
+      var stats = new ExecutionStats();
+      StackInterpreter.interpret(script, new PrintStream(OutputStream.nullOutputStream()), ExecutionConfig.DEFAULT, stats);
+      assertEquals(0, stats.dispatches());
+    }
+
+    @Test
+    public void dispatchesAreRecordedIfTheExecutionFails() {
+      var script = createScript("""
+          print(1);
+          unknown();
+          """);
+      var stats = new ExecutionStats();
+      var config = ExecutionConfig.DEFAULT.withProfile(true);
+      assertThrows(Failure.class, () -> StackInterpreter.interpret(script, new PrintStream(OutputStream.nullOutputStream()), config, stats));
+      assertTrue(stats.dispatches() > 0);
+    }
+  }
+
+  @Nested
+  public class CompiledScripts {
+    private static String executeCompiled(String code) throws IOException {
+      var script = createScript(code);
+      var path = Files.createTempFile("script", ".sjsc");
+      try {
+        StackInterpreter.compile(script, path);
+        var outStream = new ByteArrayOutputStream(8192);
+        StackInterpreter.interpret(path, new PrintStream(outStream, false, StandardCharsets.UTF_8));
+        return outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n");
+      } finally {
+        Files.delete(path);
+      }
+    }
+
+    @Test
+    public void compiledScriptPrintsTheSameThing() throws IOException {
+      var code = """
+          function point(x, y) {
+            return { x: x, y: y, name: "point" };
+          }
+          function sum(n, acc) {
+            if (n == 0) {
+              return acc;
+            }
+            return sum(n - 1, acc + n);
+          }
+          var p = point(3, 2000000000);
+          print(p.name, p.x, p.y);
+          print(sum(100, 0));
+          print(undefined);
+          """;
+      assertEquals(execute(code), executeCompiled(code));
+    }
+
+    @Test
+    public void compiledSamplesPrintTheSameThing() throws IOException {
+      for (var sample : List.of("fibo.js", "fun.js", "hello.js", "if.js", "numeric.js", "var.js")) {
+        var code = Files.readString(Path.of("samples", sample));
+        assertEquals(execute(code), executeCompiled(code), sample);
+      }
+    }
+
+    @Test
+    public void notACompiledScript() throws IOException {
+      var path = Files.createTempFile("script", ".sjsc");
+      try {
+        Files.writeString(path, "print('hello');");
+        assertThrows(IOException.class, () -> StackInterpreter.interpret(path, new PrintStream(OutputStream.nullOutputStream())));
+      } finally {
+        Files.delete(path);
+      }
+    }
+
+    @Test
+    public void truncatedCompiledScript() throws IOException {
+      var path = Files.createTempFile("script", ".sjsc");
+      try {
+        StackInterpreter.compile(createScript("print('hello');"), path);
+        var bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+        assertThrows(IOException.class, () -> StackInterpreter.interpret(path, new PrintStream(OutputStream.nullOutputStream())));
+      } finally {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Nested
+  public class TierUp {
+    private static String execute(String code, int tierUpThreshold, ExecutionStats stats) {
+      return execute(code, ExecutionConfig.DEFAULT.withTierUpThreshold(tierUpThreshold).withProfile(true), stats);
+    }
+
+    private static String execute(String code, ExecutionConfig config, ExecutionStats stats) {
+      var script = createScript(code);
+      var outStream = new ByteArrayOutputStream(8192);
+      StackInterpreter.interpret(script, new PrintStream(outStream, false, StandardCharsets.UTF_8), config, stats);
+      return outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    @Test
+    public void hotFunctionIsCompiled() {
+      var code = """
+          function fibo(n) {
+            if (n < 2) {
+              return 1;
+            }
+            return fibo(n - 1) + fibo(n - 2);
+          }
+          print(fibo(20));
+          """;
+      var stats = new ExecutionStats();
+      assertEquals("10946\n", execute(code, 100, stats));
+      assertEquals(1, stats.compiledFunctions());
+      var interpreterStats = new ExecutionStats();
+      assertEquals("10946\n", execute(code, 0, interpreterStats));
+      assertEquals(0, interpreterStats.compiledFunctions());
+      assertTrue(stats.dispatches() < interpreterStats.dispatches());
+    }
+
+    @Test
+    public void compiledFunctionCallsOtherFunctions() {
+      var stats = new ExecutionStats();
+      assertEquals("10\n55\n2000000000\n", execute("""
+          function square(x) {
+            return x * x;
+          }
+          function sum(n) {
+            if (n == 0) {
+              return 0;
+            }
+            return square(1) + sum(n - 1);
+          }
+          function count(n) {
+            var result = sum(n);
+            if (n > 1) {
+              count(n - 1);
+            }
+            return result;
+          }
+          print(count(10));
+          print(count(10) + sum(45));
+          print(1000000000 + square(0) + 1000000000);
+          """, 10, stats));
+      assertTrue(stats.compiledFunctions() >= 1);
+    }
+
+    @Test
+    public void compiledConditionsKeepTheSameSemantics() {
+      var code = """
+          function test(x) {
+            if (x) {
+              return "true";
+            }
+            return "false";
+          }
+          function loop(n) {
+            if (n == 0) {
+              return 0;
+            }
+            test(0);
+            test(1);
+            return 1 + loop(n - 1);
+          }
+          loop(20);
+          print(test(0), test(1), test(undefined), test("0"));
+          """;
+      var stats = new ExecutionStats();
+      assertEquals(execute(code, 0, new ExecutionStats()), execute(code, 5, stats));
+      assertEquals(2, stats.compiledFunctions());
+    }
+
+    @Test
+    public void functionWithATailCallIsNotCompiled() {
+      var stats = new ExecutionStats();
+      assertEquals("0\n", execute("""
+          function loop(n) {
+            if (n == 0) {
+              return 0;
+            }
+            return loop(n - 1);
+          }
+          print(loop(100000));
+          """, 10, stats));
+      assertEquals(0, stats.compiledFunctions());
+    }
+
+    @Test
+    public void functionThatCreatesObjectsIsNotCompiled() {
+      var stats = new ExecutionStats();
+      assertEquals("3\n", execute("""
+          function x(n) {
+            var o = { x: n };
+            return o.x;
+          }
+          function loop(n) {
+            if (n == 0) {
+              return x(3);
+            }
+            x(n);
+            return 0 + loop(n - 1);
+          }
+          print(loop(100));
+          """, 10, stats));
+      assertEquals(0, stats.compiledFunctions());
+    }
+
+    @Test
+    public void redefinedFunctionIsNotCompiled() {
+      var stats = new ExecutionStats();
+      assertEquals("1\n", execute("""
+          function f(n) {
+            if (n == 0) {
+              return 0;
+            }
+            return 1 + f(n - 1);
+          }
+          f(100);
+          function f(n) {
+            return 1;
+          }
+          print(f(100));
+          """, 10, stats));
+      assertEquals(0, stats.compiledFunctions());
+    }
+
+    @Test
+    public void functionThatPrintsIsNotCompiled() {
+      var stats = new ExecutionStats();
+      assertEquals("3\n2\n1\n0\n", execute("""
+          function countdown(n) {
+            print(n);
+            if (n == 0) {
+              return 0;
+            }
+            return 0 + countdown(n - 1);
+          }
+          countdown(3);
+          """, 2, stats));
+      assertEquals(0, stats.compiledFunctions());
+    }
+
+    @Test
+    public void compiledFunctionTooDeepForTheJVMStackIsInterpreted() {
+      var code = """
+          function depth(n) {
+            if (n == 0) {
+              return 0;
+            }
+            return 1 + depth(n - 1);
+          }
+          print(depth(200000));
+          """;
+      var stats = new ExecutionStats();
+      var config = ExecutionConfig.DEFAULT.withStackSizes(1_024, 1 << 24);
+      assertEquals("200000\n", execute(code, config, stats));
+      assertEquals(1, stats.compiledFunctions());
+    }
+  }
+
+  @Nested
+  public class EscapeAnalysis {
+    private static long minorCollections(String code, boolean optimize) {
+      var script = createScript(code);
+      var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(OutputStream.nullOutputStream()));
+      var dict = new Dictionary();
+      var function = InstrRewriter.createFunction("main", List.of(), script.body(), dict, optimize);
+      var stats = new ExecutionStats();
+      StackInterpreter.execute(function, dict, globalEnv, ExecutionConfig.DEFAULT, stats);
+      return stats.minorCollections();
+    }
+
+    @Test
+    public void nonEscapingObjectLiteralIsNotAllocated() {
+      var code = """
+          function sum(n) {
+            if (n == 0) {
+              return 0;
+            }
+            var p = { x: n, y: 1 };
+            p.y = p.x + p.y;
+            return p.y + sum(n - 1);
+          }
+          function point() {
+            var p = { x: 1 };
+            return p.z;
+          }
+          print(sum(500), point());
+          """;
+      assertEquals("125750 undefined\n", execute(code));
+      assertTrue(minorCollections(code, false) > 0);
+      assertEquals(0, minorCollections(code, true));
+    }
+
+    @Test
+    public void escapingObjectLiteralsKeepTheSameSemantics() {
+      assertEquals("1 2 3 6 4\n5\n", execute("""
+          function id(o) {
+            return o;
+          }
+          function f() {
+            var a = { x: 1 };
+            var b = { x: 2 };
+            var c = { x: 3 };
+            var d = { x: 4 };
+            var e = { x: 5 };
+            id(a);
+            var other = { o: c };
+            d = { x: 6 };
+            var alias = b;
+            print(a.x, alias.x, other.o.x, d.x, d.x - 2);
+            return e;
+          }
+          print(f().x);
+          """));
+    }
+
+    @Test
+    public void objectLiteralUsedBeforeItsDeclaration() {
+      assertThrows(Failure.class, () -> execute("""
+          function f() {
+            print(p.x);
+            var p = { x: 1 };
+          }
+          f();
+          """));
+    }
+  }
+
+  @Nested
+  public class LineNumbers {
+    private static final String CODE = """
+        function g(o) {
+          var a = 1;
+          return o.x +
+            unknown;
+        }
+        function f(o) {
+          var x = 1;
+          var y = g(o);
+          return y;
+        }
+
+        print(f({ x: 1 }));
+        """;
+
+    private static final String MESSAGE = """
+        unknown identifier unknown
+          at function g (line 4)
+          at function f (line 8)
+          at function main (line 12)""";
+
+    @Test
+    public void failureReportsTheLineAndTheFunctions() {
+      var failure = assertThrows(Failure.class, () -> execute(CODE));
+      assertEquals(MESSAGE, failure.getMessage());
+      assertEquals("unknown identifier unknown", failure.getCause().getMessage());
+    }
+
+    @Test
+    public void failureInACompiledScriptReportsTheLineAndTheFunctions() throws IOException {
+      var path = Files.createTempFile("script", ".sjsc");
+      try {
+        StackInterpreter.compile(createScript(CODE), path);
+        var failure = assertThrows(Failure.class, () -> StackInterpreter.interpret(path, new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals(MESSAGE, failure.getMessage());
+      } finally {
+        Files.delete(path);
+      }
+    }
+
+    @Test
+    public void failureAfterATailCall() {
+      var failure = assertThrows(Failure.class, () -> execute("""
+          function g(a, b) {
+            return a;
+          }
+          function f() {
+            return g(1);
+          }
+          f();
+          """));
+      assertEquals("""
+          wrong number of arguments for function g expected 2 but was 1
+            at function f (line 5)
+            at function main (line 7)""", failure.getMessage());
+    }
+  }
+
+  @Nested
+  public class Concurrency {
+    private static final String CODE = """
+        function fibo(n) {
+          if (n < 2) {
+            return 1;
+          }
+          return fibo(n - 1) + fibo(n - 2);
+        }
+        function point(x, y) {
+          return { x: x, y: y };
+        }
+        function sum(n, acc) {
+          if (n == 0) {
+            return acc;
+          }
+          var p = point(n, acc);
+          p.y = p.x + p.y;
+          return sum(n - 1, p.y);
+        }
+        print(fibo(15), sum(200, 0), 1000000000 + 1000000000);
+        """;
+
+    private static String execute(CompiledScript script, ExecutionConfig config) {
+      var outStream = new ByteArrayOutputStream(8192);
+      StackInterpreter.interpret(script, new PrintStream(outStream, false, StandardCharsets.UTF_8), config, new ExecutionStats());
+      return outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    private static List<String> executeConcurrently(CompiledScript script, ExecutionConfig config, int threadCount) throws InterruptedException {
+      var outputs = new String[threadCount];
+      var errors = new ConcurrentLinkedQueue<Throwable>();
+      var threads = new ArrayList<Thread>();
+      for (var i = 0; i < threadCount; i++) {
+        var index = i;
+        var thread = Thread.ofPlatform().unstarted(() -> outputs[index] = execute(script, config));
+        thread.setUncaughtExceptionHandler((_, e) -> errors.add(e));
+        threads.add(thread);
+      }
+      threads.forEach(Thread::start);
+      for (var thread : threads) {
+        thread.join();
+      }
+      assertEquals(List.of(), List.copyOf(errors));
+      return Arrays.asList(outputs);
+    }
+
+    @Test
+    public void sameCompiledScriptOnSeveralThreads() throws InterruptedException {
+      var script = StackInterpreter.compile(createScript(CODE));
+      var expected = "987 20100 2000000000\n";
+      assertEquals(expected, execute(script, ExecutionConfig.DEFAULT));
+      assertEquals(Collections.nCopies(8, expected), executeConcurrently(script, ExecutionConfig.DEFAULT.withTierUpThreshold(0), 8));
+    }
+
+    @Test
+    public void sameCompiledScriptOnSeveralThreadsWithTierUp() throws InterruptedException {
+      var script = StackInterpreter.compile(createScript(CODE));
+      var expected = "987 20100 2000000000\n";
+      assertEquals(Collections.nCopies(4, expected), executeConcurrently(script, ExecutionConfig.DEFAULT.withTierUpThreshold(10), 4));
+    }
+
+    @Test
+    public void executionsDoNotModifyTheCompiledScript() throws IOException {
+      var script = StackInterpreter.compile(createScript(CODE));
+      var before = Files.createTempFile("script", ".sjsc");
+      var after = Files.createTempFile("script", ".sjsc");
+      try {
+        StackInterpreter.compile(createScript(CODE), before);
+        execute(script, ExecutionConfig.DEFAULT.withTierUpThreshold(0));
+        execute(script, ExecutionConfig.DEFAULT);
+        CodeFile.write(after, script.function, script.dict);
+        assertEquals(-1, Files.mismatch(before, after));
+      } finally {
+        Files.delete(before);
+        Files.delete(after);
+      }
+    }
+  }
+
+  @Nested
+  public class Snapshots {
+    private static String executeAndSnapshot(Path path, ExecutionConfig config) {
+      var script = createScript("""
+          function point(x, y) {
+            return { x: x, y: y };
+          }
+          function garbage(n) {
+            if (n == 0) {
+              return 0;
+            }
+            point(n, n);
+            return garbage(n - 1);
+          }
+          var segment = { start: point(1, 2), end: point(3, 4) };
+          garbage(100);
+          snapshot("%s");
+          print(segment);
+          """.formatted(path));
+      var outStream = new ByteArrayOutputStream(8192);
+      StackInterpreter.interpret(script, new PrintStream(outStream, false, StandardCharsets.UTF_8), config, new ExecutionStats());
+      return outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    private static void checkSnapshot(ExecutionConfig config) throws IOException {
+      var path = Files.createTempFile("heap", ".sjsh");
+      try {
+        var output = executeAndSnapshot(path, config);
+        try (var snapshot = HeapSnapshot.read(path)) {
+          // only the live objects
+          assertEquals(List.of(
+              new HeapSnapshot.ClassHistogram("{ x, y }", 2, 8),
+              new HeapSnapshot.ClassHistogram("{ start, end }", 1, 4)), snapshot.histogram());
+          // the segment is on the stack
+          var found = false;
+          for (var i = 0; i < snapshot.stackSize(); i++) {
+            var value = snapshot.stack(i);
+            found |= TagValues.isReference(value) && (snapshot.format(value) + "\n").equals(output);
+          }
+          assertTrue(found);
+        }
+      } finally {
+        Files.delete(path);
+      }
+    }
+
+    @Test
+    public void snapshotGenerational() throws IOException {
+      checkSnapshot(ExecutionConfig.DEFAULT);
+    }
+
+    @Test
+    public void snapshotIncrementalOffHeap() throws IOException {
+      checkSnapshot(ExecutionConfig.DEFAULT
+          .withCollector(ExecutionConfig.Collector.INCREMENTAL)
+          .withStorage(ExecutionConfig.Storage.OFF_HEAP));
+    }
+
+    @Test
+    public void printHistogram() throws IOException {
+      var path = Files.createTempFile("heap", ".sjsh");
+      try {
+        executeAndSnapshot(path, ExecutionConfig.DEFAULT);
+        var outStream = new ByteArrayOutputStream(8192);
+        StackInterpreter.printHistogram(path, new PrintStream(outStream, false, StandardCharsets.UTF_8));
+        var lines = outStream.toString(StandardCharsets.UTF_8).lines().toList();
+        assertEquals(List.of(
+            " num   #objects      #ints  class",
+            "   1          2          8  { x, y }",
+            "   2          1          4  { start, end }",
+            "total          3         12"), lines);
+      } finally {
+        Files.delete(path);
+      }
+    }
+
+    @Test
+    public void notASnapshot() throws IOException {
+      var path = Files.createTempFile("heap", ".sjsh");
+      try {
+        Files.writeString(path, "print('hello');");
+        assertThrows(IOException.class, () -> HeapSnapshot.read(path));
+      } finally {
+        Files.delete(path);
+      }
+    }
+
+    @Test
+    public void snapshotWithoutAPath() {
+      assertThrows(Failure.class, () -> execute("snapshot(3);"));
+    }
+  }
+
+  @Nested
+  public class HiddenClasses {
+    private static String execute(String code, ExecutionConfig config, ExecutionStats stats) {
+      var script = createScript(code);
+      var outStream = new ByteArrayOutputStream(8192);
+      StackInterpreter.interpret(script, new PrintStream(outStream, false, StandardCharsets.UTF_8), config, stats);
+      return outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    @Test
+    public void addFields() {
+      assertEquals("""
+          { // object
+            x: 1
+            y: 2
+            z: 3
+            proto: null
+          }
+          1 3
+          """, StackInterpreterTests.execute("""
+          var o = {};
+          o.x = 1;
+          o.y = 2;
+          var p = { x: 1 };
+          o.z = 3;
+          p.y = 3;
+          print(o);
+          print(p.x, p.y);
+          """));
+    }
+
+    @Test
+    public void objectsWithTheSameFieldsShareTheirClass() throws IOException {
+      var path = Files.createTempFile("heap", ".sjsh");
+      try {
+        StackInterpreterTests.execute("""
+            function point(x, y) {
+              var p = {};
+              p.x = x;
+              p.y = y;
+              return p;
+            }
+            var p1 = point(1, 2);
+            var p2 = { x: 3, y: 4 };
+            var p3 = { x: 5 };
+            p3.y = 6;
+            snapshot("%s");
+            print(p1, p2, p3);
+            """.formatted(path));
+        try (var snapshot = HeapSnapshot.read(path)) {
+          assertEquals(List.of(new HeapSnapshot.ClassHistogram("{ x, y }", 3, 12)), snapshot.histogram());
+        }
+      } finally {
+        Files.delete(path);
+      }
+    }
+
+    private static final String LIST = """
+        function cons(value, tail) {
+          var n = {};
+          n.value = value;
+          n.tail = tail;
+          n.size = tail.size + 1;
+          return n;
+        }
+        function build(n, list) {
+          if (n == 0) {
+            return list;
+          }
+          var garbage = { a: n };
+          var other = { c: n };
+          garbage.b = other;
+          return build(n - 1, cons(n, list));
+        }
+        function sum(list, n, acc) {
+          if (n == 0) {
+            return acc;
+          }
+          return sum(list.tail, n - 1, acc + list.value);
+        }
+        var list = build(200, { size: 0 });
+        print(list.size, sum(list, list.size, 0));
+        """;
+
+    @Test
+    public void relocatedObjectsGenerational() {
+      var stats = new ExecutionStats();
+      assertEquals("200 20100\n", execute(LIST, ExecutionConfig.DEFAULT.withHeapSizes(64, 2048), stats));
+      assertTrue(stats.minorCollections() > 0);
+    }
+
+    @Test
+    public void relocatedObjectsIncremental() {
+      var stats = new ExecutionStats();
+      var config = ExecutionConfig.DEFAULT.withHeapSizes(64, 4096).withCollector(ExecutionConfig.Collector.INCREMENTAL);
+      assertEquals("200 20100\n", execute(LIST, config, stats));
+      assertTrue(stats.incrementalCycles() > 0);
+    }
+  }
+  @Nested
+  public class ConstantFolding {
+    private static List<Object> constants(String code) {
+      var script = createScript(code);
+      var dict = new Dictionary();
+      InstrRewriter.createFunction("main", List.of(), script.body(), dict, true);
+      var constants = new ArrayList<>();
+      for (var i = 0; i < dict.constantCount(); i++) {
+        constants.add(dict.getConst(i));
+      }
+      return constants;
+    }
+
+    @Test
+    public void foldedOperatorsKeepTheSameSemantics() {
+      assertEquals("5 1073741824 -2147483648\n1 0 1\n", execute("""
+          print(1 + 2 * 2, 1073741823 + 1, 2147483647 + 1);
+          print("a" == "a", 1 == "1", "a" < "b");
+          """));
+    }
+
+    @Test
+    public void constantConditionsAndCodeAfterAReturnAreNotCompiled() {
+      var code = """
+          function f(x) {
+            if (x < 2) {
+              return "small";
+            } else {
+              return "large";
+            }
+            print("dead");
+          }
+          if (1 + 1 == 3) {
+            print("unreachable");
+          } else {
+            print(f(1), f(3));
+          }
+          """;
+      assertEquals("small large\n", execute(code));
+      var constants = constants(code);
+      assertFalse(constants.contains("dead"));
+      assertFalse(constants.contains("unreachable"));
+    }
+
+    @Test
+    public void redefinedOperatorsAreNotFolded() {
+      var script = createScript("""
+          function f() {
+            return 3 + 2;
+          }
+          if (1 + 1 == 2) {
+            print("folded", f());
+          } else {
+            print("unfolded", f());
+          }
+          """);
+      var outStream = new ByteArrayOutputStream(8192);
+      var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, StandardCharsets.UTF_8));
+      globalEnv.register("+", JSObject.newFunction("+", (_, args) -> (Integer) args[0] * (Integer) args[1]));
+      var dict = new Dictionary();
+      var function = InstrRewriter.createFunction("main", List.of(), script.body(), dict, true);
+      StackInterpreter.execute(function, dict, globalEnv, ExecutionConfig.DEFAULT, new ExecutionStats());
+      assertEquals("unfolded 6\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    }
+
+    @Test
+    public void unusedCallToARedefinedOperatorIsExecuted() {
+      var script = createScript("""
+          1 + 2;
+          """);
+      var outStream = new ByteArrayOutputStream(8192);
+      var globalEnv = StackInterpreter.createGlobalEnv(new PrintStream(outStream, false, StandardCharsets.UTF_8));
+      globalEnv.register("+", globalEnv.lookupOrDefault("print", null));
+      var dict = new Dictionary();
+      var function = InstrRewriter.createFunction("main", List.of(), script.body(), dict, true);
+      StackInterpreter.execute(function, dict, globalEnv, ExecutionConfig.DEFAULT, new ExecutionStats());
+      assertEquals("1 2\n", outStream.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    }
   }
   /*
 